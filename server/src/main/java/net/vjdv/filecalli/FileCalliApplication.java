@@ -3,11 +3,13 @@ package net.vjdv.filecalli;
 import net.vjdv.filecalli.util.Configuration;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartAutoConfiguration;
 import org.springframework.boot.web.server.WebServerFactoryCustomizer;
 import org.springframework.boot.web.servlet.server.ConfigurableServletWebServerFactory;
 import org.springframework.context.annotation.Bean;
 
-@SpringBootApplication
+//uploads are read as they arrive by MultipartReader, the servlet container must not parse them first
+@SpringBootApplication(exclude = MultipartAutoConfiguration.class)
 public class FileCalliApplication {
 
     public static void main(String[] args) {
@@ -1,20 +1,22 @@
 package net.vjdv.filecalli.controllers;
 
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
 import net.vjdv.filecalli.exceptions.LoginException;
+import net.vjdv.filecalli.exceptions.StorageException;
 import net.vjdv.filecalli.services.SessionService;
 import net.vjdv.filecalli.services.StorageService;
-import net.vjdv.filecalli.util.Configuration;
 import net.vjdv.filecalli.util.Constants;
+import net.vjdv.filecalli.util.MultipartReader;
 import net.vjdv.filecalli.util.Utils;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.ModelAndView;
 
 import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
-import java.util.UUID;
 
 @Slf4j
 @Controller
@@ -41,37 +43,38 @@ public class WebController {
         return mav;
     }
 
+    /**
+     * Stores the files of a multipart form, each file part is encrypted into its blob while it is received,
+     * so nothing is written in plain text
+     */
     @PostMapping("/upload")
     public ModelAndView upload(@CookieValue(Constants.COOKIE_NAME) String idSession,
-                               @RequestParam("file") MultipartFile file,
-                               @RequestParam("path") String path) {
+                               @RequestParam("path") String path,
+                               HttpServletRequest request) {
         long start = System.currentTimeMillis();
         var session = sessionService.getSession(idSession);
-        var mav = new ModelAndView("upload");
-        //variables
-        var name = file.getOriginalFilename();
-        if (name == null || name.isBlank()) name = "noname";
-        name = Utils.cleanFileName(name);
-        var id = UUID.randomUUID().toString();
-        var size = file.getSize();
-        var resolvedFile = storageService.resolveFile(path + name, session.rootDir());
-        //save file to temporal location
-        try {
-            if (size == 0) throw new IOException("Empty file");
-            file.transferTo(Configuration.getInstance().getTempPath().resolve(id));
-        } catch (IOException ex) {
+        String boundary = MultipartReader.boundary(request.getContentType());
+        if (boundary == null) return new ModelAndView("error", Map.of("message", "Invalid upload"));
+        String dirPath = path.endsWith("/") ? path : path + "/";
+        int files = 0;
+        try (var reader = new MultipartReader(request.getInputStream(), boundary)) {
+            MultipartReader.Part part;
+            while ((part = reader.next()) != null) {
+                //fields and empty file inputs are skipped
+                if (part.filename() == null || part.filename().isBlank()) continue;
+                var name = Utils.cleanFileName(part.filename());
+                if (name.isBlank()) name = "noname";
+                String mime = part.contentType() == null ? Utils.mimeForExtension(name) : part.contentType();
+                storageService.store(dirPath + name, mime, -1, part.content(), session);
+                files++;
+            }
+        } catch (IOException | StorageException ex) {
+            //a file cut by the client is not stored
             log.error("Error receiving file", ex);
-            return new ModelAndView("error", Map.of("message", "Unable to create temporal file"));
+            return new ModelAndView("error", Map.of("message", "Unable to receive file"));
         }
-        //fill variables
-        mav.addObject("id", id);
-        mav.addObject("path", path);
-        mav.addObject("name", name);
-        mav.addObject("newSize", String.format("%,d", size));
-        mav.addObject("exists", resolvedFile.exists());
-        mav.addObject("oldSize", String.format("%,d", resolvedFile.size()));
-        log.info("upload() path={} {}ms", path, System.currentTimeMillis() - start);
-        return mav;
+        log.info("upload() path={} files={} {}ms", path, files, System.currentTimeMillis() - start);
+        return new ModelAndView("redirect:/web/?path=" + URLEncoder.encode(path, StandardCharsets.UTF_8));
     }
 
     @ExceptionHandler(LoginException.class)
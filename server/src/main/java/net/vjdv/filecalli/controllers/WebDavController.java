@@ -1,32 +1,43 @@
 package net.vjdv.filecalli.controllers;
 
 import jakarta.servlet.http.HttpServletRequest;
-import jakarta.xml.bind.JAXBContext;
-import jakarta.xml.bind.JAXBException;
-import jakarta.xml.bind.Marshaller;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
+import net.vjdv.filecalli.dto.ContentRangeDTO;
+import net.vjdv.filecalli.dto.ResourceStateDTO;
 import net.vjdv.filecalli.dto.WebdavSessionDTO;
-import net.vjdv.filecalli.dto.webdav.Multistatus;
 import net.vjdv.filecalli.enums.Role;
+import net.vjdv.filecalli.enums.UploadState;
 import net.vjdv.filecalli.exceptions.AuthException;
+import net.vjdv.filecalli.exceptions.DepthLimitException;
+import net.vjdv.filecalli.exceptions.InsufficientSpaceException;
 import net.vjdv.filecalli.exceptions.LoginException;
+import net.vjdv.filecalli.exceptions.PreconditionFailedException;
 import net.vjdv.filecalli.exceptions.ResourceNotFoundException;
 import net.vjdv.filecalli.exceptions.StorageException;
+import net.vjdv.filecalli.exceptions.SyncTokenException;
 import net.vjdv.filecalli.services.SessionService;
 import net.vjdv.filecalli.services.WebdavService;
+import net.vjdv.filecalli.util.ConditionalRequests;
 import net.vjdv.filecalli.util.Configuration;
-import net.vjdv.filecalli.util.TempFileSystemResource;
 import net.vjdv.filecalli.util.Utils;
-import org.glassfish.jaxb.runtime.marshaller.NamespacePrefixMapper;
+import org.springframework.core.io.Resource;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -35,6 +46,13 @@ import java.net.URISyntaxException;
 @RestController
 public class WebDavController {
 
+    private static final XMLInputFactory XML_INPUT = XMLInputFactory.newFactory();
+
+    static {
+        XML_INPUT.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
     private final SessionService sessionService;
     private final WebdavService webdavService;
 
@@ -44,27 +62,71 @@ public class WebDavController {
     }
 
     @GetMapping(value = "/**")
-    public ResponseEntity<TempFileSystemResource> getResource(HttpServletRequest request) {
+    public ResponseEntity<Resource> getResource(HttpServletRequest request) {
         WebdavSessionDTO session = parseSession(request);
         String requestPath = request.getRequestURI();
         if (!Configuration.getInstance().getContextPath().isEmpty()) {
             requestPath = requestPath.substring(Configuration.getInstance().getContextPath().length());
         }
         try {
-            var datafile = webdavService.retrieve(requestPath, session);
+            var data = webdavService.resolveFile(requestPath, session.rootDir());
+            if (!data.exists()) return ResponseEntity.notFound().build();
+            //clients revalidating their copy are answered without opening the blob
+            if (ConditionalRequests.notModified(request, data.etag(), data.lastModified())) {
+                return ResponseEntity.status(304)
+                        .eTag(data.etag())
+                        .header("Last-Modified", Utils.toRFC7231(data.lastModified()))
+                        .build();
+            }
+            var datafile = webdavService.retrieve(data, session);
+            closeAfterResponse(datafile.resource());
             log.info("{} retrieved path {}", session.userId(), requestPath);
             return ResponseEntity
                     .ok()
+                    .eTag(datafile.etag())
                     .header("Content-Type", datafile.mimeType())
                     .header("Last-Modified", Utils.toRFC7231(datafile.lastModified()))
-                    .body(new TempFileSystemResource(datafile.path()));
+                    .body(datafile.resource());
+        } catch (ResourceNotFoundException ex) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    /**
+     * Answers HEAD from the row of the resource, the blob is never opened
+     */
+    @RequestMapping(value = "/**", method = RequestMethod.HEAD)
+    public ResponseEntity<Void> headResource(HttpServletRequest request) {
+        WebdavSessionDTO session = parseSession(request);
+        String requestPath = request.getRequestURI();
+        if (!Configuration.getInstance().getContextPath().isEmpty()) {
+            requestPath = requestPath.substring(Configuration.getInstance().getContextPath().length());
+        }
+        if (requestPath.endsWith("/")) {
+            var state = webdavService.state(requestPath, session.rootDir());
+            if (!state.exists()) return ResponseEntity.notFound().build();
+            return ResponseEntity.ok()
+                    .eTag(state.etag())
+                    .header("Last-Modified", Utils.toRFC7231(state.lastModified()))
+                    .build();
+        }
+        try {
+            var data = webdavService.resolveFile(requestPath, session.rootDir());
+            if (!data.exists()) return ResponseEntity.notFound().build();
+            var builder = ConditionalRequests.notModified(request, data.etag(), data.lastModified())
+                    ? ResponseEntity.status(304)
+                    : ResponseEntity.ok().header("Content-Type", data.mime()).contentLength(data.size()).header("Accept-Ranges", "bytes");
+            return builder
+                    .eTag(data.etag())
+                    .header("Last-Modified", Utils.toRFC7231(data.lastModified()))
+                    .build();
         } catch (ResourceNotFoundException ex) {
             return ResponseEntity.notFound().build();
         }
     }
 
     @RequestMapping(value = "/**")
-    public ResponseEntity<String> handleRequest(HttpServletRequest request) {
+    public ResponseEntity<String> handleRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
         WebdavSessionDTO session = parseSession(request);
         long timeStart = System.currentTimeMillis();
         String method = request.getMethod();
@@ -76,13 +138,28 @@ public class WebDavController {
         //process by method
         switch (method) {
             case "PROPFIND": {
+                //clients omitting Depth get one level
+                String depthHeader = request.getHeader("Depth");
+                int depth;
+                if (depthHeader == null || "1".equals(depthHeader)) depth = 1;
+                else if ("0".equals(depthHeader)) depth = 0;
+                else if ("infinity".equalsIgnoreCase(depthHeader)) depth = WebdavService.DEPTH_INFINITY;
+                else return ResponseEntity.badRequest().body("Invalid Depth");
                 try {
-                    var multistatus = webdavService.propfind(requestPath, session.rootDir());
-                    String xmlResponse = marshalToXml(multistatus);
+                    var multistatus = webdavService.propfind(requestPath, session.rootDir(), depth);
+                    //the body is written while the rows are read, so the response is already handled
+                    response.setStatus(207);
+                    response.setContentType(MediaType.APPLICATION_XML_VALUE);
+                    response.setCharacterEncoding("UTF-8");
+                    multistatus.writeTo(response.getOutputStream());
                     log.info("{} propfind {} in {}ms", session.userId(), requestPath, System.currentTimeMillis() - timeStart);
-                    return ResponseEntity.status(207).contentType(MediaType.APPLICATION_XML).body(xmlResponse);
+                    return null;
                 } catch (ResourceNotFoundException ex) {
                     return ResponseEntity.notFound().build();
+                } catch (DepthLimitException ex) {
+                    log.info("{} propfind {} refused: {}", session.userId(), requestPath, ex.getMessage());
+                    String error = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><D:error xmlns:D=\"DAV:\"><D:propfind-finite-depth/></D:error>";
+                    return ResponseEntity.status(403).contentType(MediaType.APPLICATION_XML).body(error);
                 }
             }
             case "PUT": {
@@ -90,10 +167,16 @@ public class WebDavController {
                 String mime = request.getHeader("Content-Type");
                 String sizeStr = request.getHeader("Content-Length");
                 if (mime == null) mime = Utils.mimeForExtension(requestPath);
-                if (sizeStr == null) return ResponseEntity.badRequest().body("Content-Length header required");
+                //lost updates are refused before the body is read, and again when the file is published
+                var expected = preconditionState(request, requestPath, session);
+                if (preconditionFailed(request, requestPath, session, expected)) return ResponseEntity.status(412).build();
+                if (request.getHeader("Content-Range") != null) {
+                    return putRange(request, requestPath, mime, session, expected, timeStart);
+                }
                 try {
-                    long size = Long.parseLong(sizeStr);
-                    webdavService.store(requestPath, mime, size, request.getInputStream(), session);
+                    //chunked bodies have no length, the bytes read are counted instead
+                    long size = sizeStr == null ? -1 : Long.parseLong(sizeStr);
+                    webdavService.store(requestPath, mime, size, request.getInputStream(), session, expected);
                     log.info("{} stored path {} in {}ms", session.userId(), requestPath, System.currentTimeMillis() - timeStart);
                     return ResponseEntity.created(new URI(requestPath)).build();
                 } catch (IOException ex) {
@@ -106,7 +189,9 @@ public class WebDavController {
             }
             case "DELETE": {
                 if (session.role() == Role.GUEST) return ResponseEntity.status(403).body("Forbidden");
-                webdavService.delete(requestPath, session);
+                var expected = preconditionState(request, requestPath, session);
+                if (preconditionFailed(request, requestPath, session, expected)) return ResponseEntity.status(412).build();
+                webdavService.delete(requestPath, session, expected);
                 log.info("{} deleted path {} {}ms", session.userId(), requestPath, System.currentTimeMillis() - timeStart);
                 return ResponseEntity.noContent().build();
             }
@@ -142,9 +227,40 @@ public class WebDavController {
                 log.info("{} copied path {} to {} in {}ms", session.userId(), requestPath, destination, System.currentTimeMillis() - timeStart);
                 return ResponseEntity.created(URI.create(destination)).build();
             }
+            case "REPORT": {
+                SyncCollection report;
+                try {
+                    report = parseSyncCollection(request.getInputStream());
+                } catch (XMLStreamException ex) {
+                    return ResponseEntity.badRequest().body("Invalid REPORT body");
+                }
+                if (report == null) return ResponseEntity.status(501).body("Only sync-collection reports are supported");
+                if (!"1".equals(report.level()) && !"infinite".equals(report.level())) {
+                    return ResponseEntity.badRequest().body("Invalid sync-level");
+                }
+                try {
+                    var multistatus = webdavService.syncCollection(requestPath, session.rootDir(), report.token(), "infinite".equals(report.level()));
+                    response.setStatus(207);
+                    response.setContentType(MediaType.APPLICATION_XML_VALUE);
+                    response.setCharacterEncoding("UTF-8");
+                    multistatus.writeTo(response.getOutputStream());
+                    log.info("{} sync-collection {} in {}ms", session.userId(), requestPath, System.currentTimeMillis() - timeStart);
+                    return null;
+                } catch (ResourceNotFoundException ex) {
+                    return ResponseEntity.notFound().build();
+                } catch (SyncTokenException ex) {
+                    log.info("{} sync-collection {} refused: {}", session.userId(), requestPath, ex.getMessage());
+                    String error = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><D:error xmlns:D=\"DAV:\"><D:valid-sync-token/></D:error>";
+                    return ResponseEntity.status(403).contentType(MediaType.APPLICATION_XML).body(error);
+                } catch (DepthLimitException ex) {
+                    log.info("{} sync-collection {} refused: {}", session.userId(), requestPath, ex.getMessage());
+                    String error = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><D:error xmlns:D=\"DAV:\"><D:number-of-matches-within-limits/></D:error>";
+                    return ResponseEntity.status(507).contentType(MediaType.APPLICATION_XML).body(error);
+                }
+            }
             case "OPTIONS": {
                 return ResponseEntity.ok()
-                        .header("Allow", "OPTIONS, GET, HEAD, POST, PUT, DELETE, COPY, MOVE, MKCOL, PROPFIND")
+                        .header("Allow", "OPTIONS, GET, HEAD, POST, PUT, DELETE, COPY, MOVE, MKCOL, PROPFIND, REPORT")
                         .build();
             }
             case "LOCK":
@@ -156,6 +272,96 @@ public class WebDavController {
         }
     }
 
+    /**
+     * Receives a part of a resumable upload. The bytes kept by the server are answered in a Range header, the
+     * client sends the next part from there.
+     */
+    private ResponseEntity<String> putRange(HttpServletRequest request, String requestPath, String mime, WebdavSessionDTO session, ResourceStateDTO expected, long timeStart) throws IOException {
+        var range = ContentRangeDTO.parse(request.getHeader("Content-Range"));
+        if (range == null) return ResponseEntity.badRequest().body("Invalid Content-Range");
+        long length = request.getContentLengthLong();
+        if (length != -1 && length != range.length()) return ResponseEntity.badRequest().body("Content-Length does not match Content-Range");
+        var status = webdavService.upload(requestPath, mime, range, request.getInputStream(), session, expected);
+        log.info("{} upload {} {} {} kept {} bytes in {}ms", session.userId(), requestPath, request.getHeader("Content-Range"), status.state(), status.received(), System.currentTimeMillis() - timeStart);
+        var builder = switch (status.state()) {
+            case COMPLETE -> ResponseEntity.created(URI.create(requestPath));
+            case INCOMPLETE -> ResponseEntity.accepted();
+            case MISMATCH, BUSY -> ResponseEntity.status(409);
+        };
+        if (status.state() != UploadState.COMPLETE && status.received() > 0) builder.header("Range", "bytes=0-" + (status.received() - 1));
+        if (status.state() == UploadState.BUSY) return builder.body("Upload in progress");
+        return builder.build();
+    }
+
+    /**
+     * Closes the blob of a response once the response is written, the body is written after the handler returns
+     */
+    private void closeAfterResponse(Resource resource) {
+        if (!(resource instanceof Closeable closeable)) return;
+        RequestContextHolder.currentRequestAttributes().registerDestructionCallback("filecalli.blob", () -> {
+            try {
+                closeable.close();
+            } catch (IOException ex) {
+                log.warn("Error closing {}", resource.getDescription(), ex);
+            }
+        }, RequestAttributes.SCOPE_REQUEST);
+    }
+
+    /**
+     * Reads the state of the resource of a request changing it, only if the request has preconditions. The
+     * change is made only if the resource still has this state when it is committed.
+     *
+     * @return the state, null if the request has no preconditions
+     */
+    private ResourceStateDTO preconditionState(HttpServletRequest request, String requestPath, WebdavSessionDTO session) {
+        if (request.getHeader("If-Match") == null && request.getHeader("If-None-Match") == null
+                && request.getHeader("If-Unmodified-Since") == null) {
+            return null;
+        }
+        return webdavService.state(requestPath, session.rootDir());
+    }
+
+    /**
+     * Evaluates the preconditions of a request changing a resource against its state
+     */
+    private boolean preconditionFailed(HttpServletRequest request, String requestPath, WebdavSessionDTO session, ResourceStateDTO state) {
+        if (state == null) return false;
+        boolean failed = ConditionalRequests.preconditionFailed(request, state.etag(), state.lastModified());
+        if (failed) log.info("{} {} {} refused, precondition failed", session.userId(), request.getMethod(), requestPath);
+        return failed;
+    }
+
+    /**
+     * Reads the token and level of a sync-collection REPORT body, the requested properties are ignored since
+     * the responses always carry the same properties as PROPFIND
+     *
+     * @param input request body
+     * @return the report, null if the body is not a sync-collection report
+     */
+    private SyncCollection parseSyncCollection(InputStream input) throws XMLStreamException {
+        var reader = XML_INPUT.createXMLStreamReader(input);
+        try {
+            String token = null;
+            String level = null;
+            boolean root = true;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+                boolean dav = "DAV:".equals(reader.getNamespaceURI());
+                if (root) {
+                    if (!dav || !"sync-collection".equals(reader.getLocalName())) return null;
+                    root = false;
+                } else if (dav && "sync-token".equals(reader.getLocalName())) {
+                    token = reader.getElementText().trim();
+                } else if (dav && "sync-level".equals(reader.getLocalName())) {
+                    level = reader.getElementText().trim();
+                }
+            }
+            return root ? null : new SyncCollection(token, level);
+        } finally {
+            reader.close();
+        }
+    }
+
     private WebdavSessionDTO parseSession(HttpServletRequest request) throws AuthException {
         //Reads authorization header
         String auth = request.getHeader("Authorization");
@@ -182,6 +388,18 @@ public class WebDavController {
         return session;
     }
 
+    @ExceptionHandler(InsufficientSpaceException.class)
+    public ResponseEntity<String> handleInsufficientSpaceException(InsufficientSpaceException ex) {
+        log.warn("Upload refused: {}", ex.getMessage());
+        return ResponseEntity.status(507).body(ex.getMessage());
+    }
+
+    @ExceptionHandler(PreconditionFailedException.class)
+    public ResponseEntity<String> handlePreconditionFailedException(PreconditionFailedException ex) {
+        log.info("Change refused: {}", ex.getMessage());
+        return ResponseEntity.status(412).build();
+    }
+
     @ExceptionHandler(StorageException.class)
     public ResponseEntity<String> handleStorageException(StorageException ex) {
         log.warn("Storage error", ex);
@@ -194,36 +412,12 @@ public class WebDavController {
     }
 
     /**
-     * Marshals objects to XML
+     * Body of a sync-collection REPORT
      *
-     * @param multistatus object
-     * @return xml
+     * @param token sync token of the previous report, empty for the initial sync
+     * @param level 1 or infinite
      */
-    private String marshalToXml(Multistatus multistatus) {
-        try {
-            // Create JAXB context and marshaller
-            JAXBContext context = JAXBContext.newInstance(Multistatus.class);
-            Marshaller marshaller = context.createMarshaller();
-            // Configure marshaller for pretty-printing
-            marshaller.setProperty("org.glassfish.jaxb.namespacePrefixMapper", new MyNamespacePrefixMapper());
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            // Marshal the Multistatus object to XML
-            StringWriter writer = new StringWriter();
-            marshaller.marshal(multistatus, writer);
-            return writer.toString();
-        } catch (JAXBException ex) {
-            throw new RuntimeException("Error marshalling to XML", ex);
-        }
-    }
-
-    public static class MyNamespacePrefixMapper extends NamespacePrefixMapper {
-        @Override
-        public String getPreferredPrefix(String namespaceUri, String suggestion, boolean requirePrefix) {
-            if ("DAV:".equals(namespaceUri)) {
-                return "D";
-            }
-            return suggestion;
-        }
+    private record SyncCollection(String token, String level) {
     }
 
 }
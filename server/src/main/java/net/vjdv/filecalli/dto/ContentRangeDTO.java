@@ -0,0 +1,48 @@
+package net.vjdv.filecalli.dto;
+
+/**
+ * Content-Range of a request body, {@code bytes start-end/total}
+ *
+ * @param start first byte, -1 when the range is {@code *}, which only asks the state of an upload
+ * @param end   last byte, inclusive
+ * @param total size of the whole file, -1 if unknown
+ */
+public record ContentRangeDTO(long start, long end, long total) {
+
+    /**
+     * @param header value of the header
+     * @return the range, null if the header is not valid
+     */
+    public static ContentRangeDTO parse(String header) {
+        if (header == null || !header.startsWith("bytes ")) return null;
+        String value = header.substring(6).trim();
+        int slash = value.indexOf('/');
+        if (slash == -1) return null;
+        try {
+            String totalStr = value.substring(slash + 1).trim();
+            long total = "*".equals(totalStr) ? -1 : Long.parseLong(totalStr);
+            String range = value.substring(0, slash).trim();
+            if ("*".equals(range)) return new ContentRangeDTO(-1, -1, total);
+            int dash = range.indexOf('-');
+            if (dash == -1) return null;
+            long start = Long.parseLong(range.substring(0, dash));
+            long end = Long.parseLong(range.substring(dash + 1));
+            if (start < 0 || end < start || (total != -1 && end >= total)) return null;
+            return new ContentRangeDTO(start, end, total);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    public long length() {
+        return start == -1 ? 0 : end - start + 1;
+    }
+
+    /**
+     * @return true if the range ends the file
+     */
+    public boolean isLast() {
+        return total != -1 && end + 1 == total;
+    }
+
+}
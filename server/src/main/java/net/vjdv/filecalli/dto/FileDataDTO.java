@@ -1,5 +1,7 @@
 package net.vjdv.filecalli.dto;
 
+import net.vjdv.filecalli.util.Utils;
+
 public record FileDataDTO(
         int id,
         String name,
@@ -8,11 +10,17 @@ public record FileDataDTO(
         long size,
         long createdAt,
         long lastModified,
-        int directoryId
+        int directoryId,
+        int blobId,
+        long version
 ) {
 
     public boolean exists() {
         return id != 0;
     }
 
+    public String etag() {
+        return Utils.fileETag(id, version);
+    }
+
 }
@@ -0,0 +1,15 @@
+package net.vjdv.filecalli.dto;
+
+/**
+ * State of a resource checked by the preconditions of a request
+ *
+ * @param etag         current ETag, null if the resource does not exist
+ * @param lastModified modification epoch millis
+ */
+public record ResourceStateDTO(String etag, long lastModified) {
+
+    public boolean exists() {
+        return etag != null;
+    }
+
+}
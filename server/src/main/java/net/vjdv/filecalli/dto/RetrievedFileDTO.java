@@ -1,6 +1,6 @@
 package net.vjdv.filecalli.dto;
 
-import java.nio.file.Path;
+import org.springframework.core.io.Resource;
 
 public record RetrievedFileDTO(
         String name,
@@ -8,11 +8,12 @@ public record RetrievedFileDTO(
         long size,
         long createdAt,
         long lastModified,
-        Path path
+        String etag,
+        Resource resource
 ) {
 
-    public RetrievedFileDTO(FileDataDTO data, Path path) {
-        this(data.name(), data.mime(), data.size(), data.createdAt(), data.lastModified(), path);
+    public RetrievedFileDTO(FileDataDTO data, Resource resource) {
+        this(data.name(), data.mime(), data.size(), data.createdAt(), data.lastModified(), data.etag(), resource);
     }
 
 }
@@ -0,0 +1,13 @@
+package net.vjdv.filecalli.dto;
+
+/**
+ * Counters of a session store
+ *
+ * @param hits        lookups that found a live session
+ * @param misses      lookups that found no session
+ * @param evictions   sessions removed to keep the store bounded
+ * @param expirations sessions removed because they expired
+ * @param size        sessions in the store
+ */
+public record SessionStatsDTO(long hits, long misses, long evictions, long expirations, int size) {
+}
@@ -0,0 +1,14 @@
+package net.vjdv.filecalli.dto;
+
+/**
+ * Usage of the staging space
+ *
+ * @param used       bytes reserved by the staging files open now
+ * @param peak       highest bytes reserved at the same time
+ * @param quota      bytes the staging files may reserve together
+ * @param files      staging files open now
+ * @param waits      reservations that waited for space
+ * @param rejections reservations refused for lack of space
+ */
+public record StagingStatsDTO(long used, long peak, long quota, int files, long waits, long rejections) {
+}
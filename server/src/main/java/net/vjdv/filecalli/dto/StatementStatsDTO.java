@@ -0,0 +1,11 @@
+package net.vjdv.filecalli.dto;
+
+/**
+ * Statistics of the prepared statement caches of all connections
+ *
+ * @param hits      statements reused from the cache
+ * @param misses    statements prepared because they were not cached
+ * @param evictions statements closed to keep the caches bounded
+ */
+public record StatementStatsDTO(long hits, long misses, long evictions) {
+}
@@ -0,0 +1,12 @@
+package net.vjdv.filecalli.dto;
+
+import net.vjdv.filecalli.enums.UploadState;
+
+/**
+ * State of a resumable upload after a request
+ *
+ * @param state    result of the request
+ * @param received plain bytes kept by the server, the client continues from here
+ */
+public record UploadStatusDTO(UploadState state, long received) {
+}
@@ -2,7 +2,8 @@ package net.vjdv.filecalli.enums;
 
 public enum Parameter {
 
-    DATA_VERSION(1);
+    DATA_VERSION(1),
+    SNAPSHOT_GENERATION(2);
 
     private final int value;
 
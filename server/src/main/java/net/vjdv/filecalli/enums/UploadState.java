@@ -0,0 +1,25 @@
+package net.vjdv.filecalli.enums;
+
+/**
+ * Result of a request of a resumable upload
+ */
+public enum UploadState {
+
+    /**
+     * The data was appended, more is expected
+     */
+    INCOMPLETE,
+    /**
+     * The file was published
+     */
+    COMPLETE,
+    /**
+     * The range does not start where the received data ends
+     */
+    MISMATCH,
+    /**
+     * Another request of the same upload is running
+     */
+    BUSY;
+
+}
@@ -0,0 +1,12 @@
+package net.vjdv.filecalli.exceptions;
+
+/**
+ * A PROPFIND with Depth infinity would return more resources than allowed
+ */
+public class DepthLimitException extends RuntimeException {
+
+    public DepthLimitException(String message) {
+        super(message);
+    }
+
+}
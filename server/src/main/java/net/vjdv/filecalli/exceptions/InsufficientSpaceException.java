@@ -0,0 +1,12 @@
+package net.vjdv.filecalli.exceptions;
+
+/**
+ * The staging space stayed full longer than the wait allowed
+ */
+public class InsufficientSpaceException extends StorageException {
+
+    public InsufficientSpaceException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,12 @@
+package net.vjdv.filecalli.exceptions;
+
+/**
+ * The resource changed after the preconditions of a request were evaluated, the change was not made
+ */
+public class PreconditionFailedException extends StorageException {
+
+    public PreconditionFailedException(String message) {
+        super(message);
+    }
+
+}
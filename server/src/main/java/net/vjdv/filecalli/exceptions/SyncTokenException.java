@@ -0,0 +1,12 @@
+package net.vjdv.filecalli.exceptions;
+
+/**
+ * The sync token of a sync-collection report was not issued by this server or is no longer valid
+ */
+public class SyncTokenException extends RuntimeException {
+
+    public SyncTokenException(String message) {
+        super(message);
+    }
+
+}
@@ -5,49 +5,133 @@ import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
 import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import net.vjdv.filecalli.dto.ResultSetWrapper;
+import net.vjdv.filecalli.dto.RowMapper;
 import net.vjdv.filecalli.dto.SetupDTO;
+import net.vjdv.filecalli.dto.StatementStatsDTO;
+import net.vjdv.filecalli.enums.Parameter;
 import net.vjdv.filecalli.exceptions.DataException;
+import net.vjdv.filecalli.util.ChangeJournal;
 import net.vjdv.filecalli.util.Configuration;
 import net.vjdv.filecalli.util.CryptHelper;
+import net.vjdv.filecalli.util.MigrationRunner;
 import net.vjdv.filecalli.util.SetupHelper;
+import net.vjdv.filecalli.util.StatementCache;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.sqlite.SQLiteConfig;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicReference;
+import java.sql.Savepoint;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+/**
+ * Access to the sqlite database in WAL mode. Queries run in a pool of read only connections, so they run
+ * in parallel, while inserts and updates are queued to a single thread that owns the only writer connection.
+ * <p>
+ * Every write runs in a transaction. With group commit, the writer takes all the writes queued while the
+ * previous commit was running and commits them together, each one in its own savepoint, so a failing write
+ * does not undo the others.
+ * <p>
+ * Each connection keeps its prepared statements in a {@link StatementCache}, so the frequent queries are
+ * parsed once per connection.
+ * <p>
+ * The plain database lives in the temp path. What is stored in the data path is an encrypted snapshot plus a
+ * {@link ChangeJournal} with the statements committed after it, appended before each commit is acknowledged.
+ * When the journal grows, the snapshot is replaced by a new one taken with the sqlite backup API and the
+ * journal starts again. Each snapshot has a generation, journal-N holds the changes after snapshot N.
+ */
 @Slf4j
 @Service
 public class DataService {
 
-    private final Connection connection;
+    private static final int BUSY_TIMEOUT = 10_000;
+    private static final int MAX_GROUP_SIZE = 256;
+    private static final WriteTask STOP = new WriteTask(() -> null, false, new CompletableFuture<>());
+
+    private final Connection writer;
+    private final StatementCache writerStatements;
+    private final Thread writerThread;
+    private final BlockingQueue<WriteTask> writeQueue = new LinkedBlockingQueue<>();
+    private final boolean groupCommit;
+    private final BlockingQueue<StatementCache> readers;
+    private final List<StatementCache> allReaders = new ArrayList<>();
+    private final ThreadLocal<StatementCache> borrowedReader = new ThreadLocal<>();
     private final SecretKey key;
+    private final Path dataPath;
     private final Path encryptedDb;
     private final Path dbPath;
+    private final Path snapshotPath;
+    private final long journalCompactBytes;
+    private final Object compactLock = new Object();
+    private long publishedGeneration;
+    //used only by the writer thread
+    private ChangeJournal journal;
+    private long generation;
+    //set when committed changes are missing from the journal, writes are refused until a snapshot holds them
+    private boolean journalFailed = false;
+    //results of the writes committed while the journal failed, delivered when a snapshot holds them
+    private List<Runnable> unjournaled = new ArrayList<>();
+    private List<ChangeJournal.Statement> taskStatements = null;
 
+    @Autowired
     public DataService(Configuration configuration) {
-        Path dataPath = configuration.getDataPath();
+        this(configuration, configuration.getDataPath(), configuration.getTempPath(), "db", false);
+    }
+
+    /**
+     * Opens a database kept in its own directories, used for the shards of {@link ShardService}
+     *
+     * @param configuration the configuration
+     * @param dataPath      directory of the encrypted database, its journals and its blobs
+     * @param tempPath      directory of the plain database
+     * @param name          name of the database, used for the writer thread
+     * @param create        true to create an empty database if it does not exist, instead of running setup
+     */
+    DataService(Configuration configuration, Path dataPath, Path tempPath, String name, boolean create) {
+        this.dataPath = dataPath;
         Path setupPath = dataPath.resolve("setup.yml");
         var keyBytes = CryptHelper.hashBytes(configuration.getSalt());
         key = new SecretKeySpec(keyBytes, "AES");
         encryptedDb = dataPath.resolve("db");
-        dbPath = configuration.getTempPath().resolve("db.sqlite");
+        dbPath = tempPath.resolve("db.sqlite");
+        snapshotPath = tempPath.resolve("db-snapshot.sqlite");
+        journalCompactBytes = configuration.getJournalCompactBytes();
         log.info("sqlite path is {}", encryptedDb);
-        if (!Files.exists(encryptedDb) && !Files.exists(setupPath)) {
+        if (!create && !Files.exists(encryptedDb) && !Files.exists(setupPath)) {
             throw new DataException("Please run setup first.");
         }
+        //plain files left by a crash are older than the snapshot and its journals
+        try {
+            Files.createDirectories(tempPath);
+            Files.deleteIfExists(dbPath);
+            Files.deleteIfExists(Path.of(dbPath + "-wal"));
+            Files.deleteIfExists(Path.of(dbPath + "-shm"));
+            Files.deleteIfExists(snapshotPath);
+        } catch (IOException ex) {
+            throw new DataException("Error deleting old database files", ex);
+        }
         if (Files.exists(encryptedDb)) {
             try (var fis = Files.newInputStream(encryptedDb)) {
                 CryptHelper.decrypt(fis, dbPath, key);
@@ -57,14 +141,20 @@ public class DataService {
         }
         String url = "jdbc:sqlite:" + dbPath.toAbsolutePath();
         try {
-            Class.forName("org.sqlite.JDBC");
-            connection = DriverManager.getConnection(url);
-        } catch (ClassNotFoundException | SQLException ex) {
+            SQLiteConfig writerConfig = new SQLiteConfig();
+            writerConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            writerConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+            writerConfig.setBusyTimeout(BUSY_TIMEOUT);
+            writer = writerConfig.createConnection(url);
+        } catch (SQLException ex) {
             throw new DataException("Error opening database", ex);
         }
-        if (Files.exists(setupPath)) {
+        boolean setup = Files.exists(setupPath);
+        if (setup) {
             log.info("Will run setup");
-            SetupHelper.createTables(connection);
+            //journals of a previous database do not apply to the new one
+            deleteJournals(Long.MAX_VALUE);
+            SetupHelper.createTables(writer);
             log.info("Parsing setup.yml");
             ObjectMapper mapper = new YAMLMapper();
             SetupDTO setupDto;
@@ -73,12 +163,49 @@ public class DataService {
             } catch (IOException ex) {
                 throw new DataException("Error reading setup.yml", ex);
             }
-            SetupHelper.setupUsers(connection, setupDto.users());
+            SetupHelper.setupUsers(writer, setupDto.users());
             try {
                 Files.delete(setupPath);
             } catch (IOException ex) {
                 throw new DataException("Error deleting setup.yml", ex);
             }
+        } else if (!Files.exists(encryptedDb)) {
+            log.info("Creating database {}", name);
+            deleteJournals(Long.MAX_VALUE);
+            SetupHelper.createTables(writer);
+        }
+        //the snapshot is brought up to date with its journals before migrating
+        long replayed = replayJournals();
+        boolean migrated = MigrationRunner.readVersion(writer) < MigrationRunner.latestVersion();
+        MigrationRunner.migrate(writer);
+        //the writer connection is used only by its thread from now on
+        int cacheSize = configuration.getDbStatementCacheSize();
+        writerStatements = new StatementCache(writer, cacheSize);
+        groupCommit = configuration.isDbGroupCommit();
+        writerThread = new Thread(this::runWriter, name + "-writer");
+        writerThread.start();
+        //read only connections
+        int readersCount = Math.max(1, configuration.getDbReaders());
+        readers = new ArrayBlockingQueue<>(readersCount);
+        try {
+            SQLiteConfig readerConfig = new SQLiteConfig();
+            readerConfig.setReadOnly(true);
+            readerConfig.setBusyTimeout(BUSY_TIMEOUT);
+            for (int i = 0; i < readersCount; i++) {
+                allReaders.add(new StatementCache(readerConfig.createConnection(url), cacheSize));
+            }
+            readers.addAll(allReaders);
+        } catch (SQLException ex) {
+            throw new DataException("Error opening database", ex);
+        }
+        //changes not made through the journal need a new snapshot, journals are never reopened for appending
+        if (setup || replayed > 0 || migrated || !Files.exists(encryptedDb)) {
+            compact(true, 0);
+        } else {
+            submit(() -> {
+                journal = ChangeJournal.create(journalPath(generation), key);
+                return null;
+            }, false);
         }
     }
 
@@ -90,13 +217,21 @@ public class DataService {
      * @return the autoincremented id
      */
     public int insertAutoincrement(String sql, Object... params) {
-        try (var stmt = connection.prepareStatement(sql, PreparedStatement.RETURN_GENERATED_KEYS)) {
-            fillParameters(stmt, params);
-            stmt.execute();
-            return stmt.getGeneratedKeys().getInt(1);
-        } catch (SQLException ex) {
-            throw new DataException("Error executing insert", ex);
-        }
+        return write(() -> {
+            var statement = new ChangeJournal.Statement(sql, params);
+            try {
+                return writerStatements.useReturningKeys(sql, stmt -> {
+                    fillParameters(stmt, params);
+                    stmt.execute();
+                    if (taskStatements != null) taskStatements.add(statement);
+                    try (var keys = stmt.getGeneratedKeys()) {
+                        return keys.getInt(1);
+                    }
+                });
+            } catch (SQLException ex) {
+                throw new DataException("Error executing insert", ex);
+            }
+        });
     }
 
     /**
@@ -107,12 +242,19 @@ public class DataService {
      * @return the number of rows affected
      */
     public int update(String sql, Object... params) {
-        try (var stmt = connection.prepareStatement(sql)) {
-            fillParameters(stmt, params);
-            return stmt.executeUpdate();
-        } catch (SQLException ex) {
-            throw new DataException("Error executing update", ex);
-        }
+        return write(() -> {
+            var statement = new ChangeJournal.Statement(sql, params);
+            try {
+                return writerStatements.use(sql, stmt -> {
+                    fillParameters(stmt, params);
+                    int count = stmt.executeUpdate();
+                    if (taskStatements != null) taskStatements.add(statement);
+                    return count;
+                });
+            } catch (SQLException ex) {
+                throw new DataException("Error executing update", ex);
+            }
+        });
     }
 
     /**
@@ -123,16 +265,10 @@ public class DataService {
      * @param params   the query parameters
      */
     public void query(String sql, Consumer<ResultSetWrapper> consumer, Object... params) {
-        try (var stmt = connection.prepareStatement(sql)) {
-            //fill parameters
-            fillParameters(stmt, params);
-            //execute query
-            try (var rs = stmt.executeQuery()) {
-                consumer.accept(new ResultSetWrapper(rs));
-            }
-        } catch (SQLException ex) {
-            throw new DataException("Error executing query", ex);
-        }
+        read(sql, rs -> {
+            consumer.accept(new ResultSetWrapper(rs));
+            return null;
+        }, params);
     }
 
     /**
@@ -145,14 +281,7 @@ public class DataService {
      * @return the optional value returned by the function, empty if the result set is empty
      */
     public <T> Optional<T> queryOne(String sql, Function<ResultSetWrapper, T> function, Object... params) {
-        AtomicReference<T> result = new AtomicReference<>(null);
-        query(sql, rs -> {
-            if (rs.next()) {
-                T item = function.apply(rs);
-                result.set(item);
-            }
-        }, params);
-        return Optional.ofNullable(result.get());
+        return Optional.ofNullable(read(sql, rs -> rs.next() ? function.apply(new ResultSetWrapper(rs)) : null, params));
     }
 
     /**
@@ -165,14 +294,14 @@ public class DataService {
      * @return values available in the result set
      */
     public <T> List<T> queryList(String sql, Function<ResultSetWrapper, T> function, Object... params) {
-        List<T> list = new ArrayList<>();
-        query(sql, rs -> {
+        return read(sql, rs -> {
+            List<T> list = new ArrayList<>();
+            var wrapper = new ResultSetWrapper(rs);
             while (rs.next()) {
-                T item = function.apply(rs);
-                list.add(item);
+                list.add(function.apply(wrapper));
             }
+            return list;
         }, params);
-        return list;
     }
 
     /**
@@ -183,13 +312,305 @@ public class DataService {
      * @param params   query parameters
      */
     public void forEach(String sql, Consumer<ResultSetWrapper> consumer, Object... params) {
-        query(sql, rs -> {
+        read(sql, rs -> {
+            var wrapper = new ResultSetWrapper(rs);
+            while (rs.next()) {
+                consumer.accept(wrapper);
+            }
+            return null;
+        }, params);
+    }
+
+    /**
+     * Execute a query and map its first row, the mapper reads the columns by index from the result set
+     *
+     * @param sql    sql query
+     * @param mapper row mapper
+     * @param params query parameters
+     * @param <T>    the mapped type
+     * @return the mapped row, empty if the result set is empty
+     */
+    public <T> Optional<T> selectOne(String sql, RowMapper<T> mapper, Object... params) {
+        return Optional.ofNullable(read(sql, rs -> rs.next() ? mapper.map(rs) : null, params));
+    }
+
+    /**
+     * Execute a query and map all its rows, the mapper reads the columns by index from the result set
+     *
+     * @param sql    sql query
+     * @param mapper row mapper
+     * @param params query parameters
+     * @param <T>    the mapped type
+     * @return the mapped rows
+     */
+    public <T> List<T> selectList(String sql, RowMapper<T> mapper, Object... params) {
+        return read(sql, rs -> {
+            List<T> list = new ArrayList<>();
             while (rs.next()) {
-                consumer.accept(rs);
+                list.add(mapper.map(rs));
             }
+            return list;
         }, params);
     }
 
+    /**
+     * Runs a query with the cached statements of a connection. The writer thread reads its own changes from
+     * the writer connection, other threads borrow a reader, nested queries reuse the reader of the thread.
+     *
+     * @param sql      the query
+     * @param function function processing the result set
+     * @param params   the query parameters
+     * @param <T>      the return type of the function
+     * @return the result of the function
+     */
+    private <T> T read(String sql, ResultSetFunction<T> function, Object... params) {
+        if (Thread.currentThread() == writerThread) return read(writerStatements, sql, function, params);
+        StatementCache reader = borrowedReader.get();
+        if (reader != null) return read(reader, sql, function, params);
+        try {
+            reader = readers.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DataException("Interrupted waiting for a connection", ex);
+        }
+        borrowedReader.set(reader);
+        try {
+            return read(reader, sql, function, params);
+        } finally {
+            borrowedReader.remove();
+            readers.add(reader);
+        }
+    }
+
+    private <T> T read(StatementCache statements, String sql, ResultSetFunction<T> function, Object... params) {
+        try {
+            return statements.use(sql, stmt -> {
+                fillParameters(stmt, params);
+                try (var rs = stmt.executeQuery()) {
+                    return function.apply(rs);
+                }
+            });
+        } catch (SQLException ex) {
+            throw new DataException("Error executing query", ex);
+        }
+    }
+
+    /**
+     * @return statistics of the statement caches of all the connections
+     */
+    public StatementStatsDTO statementStats() {
+        long hits = writerStatements.getHits();
+        long misses = writerStatements.getMisses();
+        long evictions = writerStatements.getEvictions();
+        for (StatementCache reader : allReaders) {
+            hits += reader.getHits();
+            misses += reader.getMisses();
+            evictions += reader.getEvictions();
+        }
+        return new StatementStatsDTO(hits, misses, evictions);
+    }
+
+    /**
+     * @return directory of the encrypted database, blobs of its files are stored under it
+     */
+    public Path getDataPath() {
+        return dataPath;
+    }
+
+    /**
+     * @return true if the caller runs in the writer thread, inside a transaction
+     */
+    public boolean isWriterThread() {
+        return Thread.currentThread() == writerThread;
+    }
+
+    /**
+     * Runs a unit of work in one transaction, all the inserts, updates and queries done by the work use the
+     * writer connection. If the work throws an exception, none of its changes are committed. Nested calls
+     * are part of the outer transaction.
+     * <p>
+     * The work runs in the writer thread and blocks other writes, it should not do file or network I/O.
+     *
+     * @param work the unit of work
+     * @param <T>  the return type of the work
+     * @return the result of the work
+     */
+    public <T> T inTransaction(Supplier<T> work) {
+        return write(work::get);
+    }
+
+    /**
+     * Runs a unit of work in one transaction
+     *
+     * @param work the unit of work
+     * @see #inTransaction(Supplier)
+     */
+    public void inTransaction(Runnable work) {
+        write(() -> {
+            work.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs a task in a transaction of the writer thread and waits for its result
+     *
+     * @param task task using the writer connection
+     * @param <T>  the return type of the task
+     * @return the result of the task
+     */
+    private <T> T write(Callable<T> task) {
+        return submit(task, true);
+    }
+
+    /**
+     * Runs a task in the writer thread and waits for its result, the task runs directly if the caller is
+     * the writer thread
+     *
+     * @param task          task using the writer connection
+     * @param transactional false if the task must run outside a transaction
+     * @param <T>           the return type of the task
+     * @return the result of the task
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T submit(Callable<T> task, boolean transactional) {
+        try {
+            if (Thread.currentThread() == writerThread) return task.call();
+            var writeTask = new WriteTask(task, transactional, new CompletableFuture<>());
+            writeQueue.add(writeTask);
+            return (T) writeTask.result().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DataException("Interrupted waiting for the writer", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException cause) throw cause;
+            throw new DataException("Error writing to database", ex.getCause());
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new DataException("Error writing to database", ex);
+        }
+    }
+
+    /**
+     * Loop of the writer thread, takes the queued tasks and runs them until the service is closed
+     */
+    private void runWriter() {
+        List<WriteTask> tasks = new ArrayList<>();
+        while (true) {
+            try {
+                tasks.add(writeQueue.take());
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (groupCommit) writeQueue.drainTo(tasks, MAX_GROUP_SIZE - 1);
+            int i = 0;
+            while (i < tasks.size()) {
+                WriteTask task = tasks.get(i);
+                if (task == STOP) return;
+                if (!task.transactional()) {
+                    runTask(task);
+                    i++;
+                    continue;
+                }
+                //consecutive transactional tasks share the commit
+                int end = i + 1;
+                while (end < tasks.size() && tasks.get(end).transactional()) end++;
+                commitGroup(tasks.subList(i, end));
+                i = end;
+            }
+            tasks.clear();
+        }
+    }
+
+    private void runTask(WriteTask task) {
+        try {
+            task.result().complete(task.work().call());
+        } catch (Exception ex) {
+            task.result().completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Runs the tasks in one transaction, each one in a savepoint that is rolled back if the task fails.
+     * Results are delivered after the commit.
+     *
+     * @param group tasks to commit together
+     */
+    private void commitGroup(List<WriteTask> group) {
+        if (journalFailed) {
+            group.forEach(task -> task.result().completeExceptionally(new DataException("Database journal unavailable, writes are refused until a snapshot is taken")));
+            return;
+        }
+        Object[] results = new Object[group.size()];
+        Exception[] errors = new Exception[group.size()];
+        List<ChangeJournal.Statement> committed = new ArrayList<>();
+        try {
+            writer.setAutoCommit(false);
+            for (int i = 0; i < group.size(); i++) {
+                Savepoint savepoint = writer.setSavepoint();
+                taskStatements = new ArrayList<>();
+                try {
+                    results[i] = group.get(i).work().call();
+                    writer.releaseSavepoint(savepoint);
+                    committed.addAll(taskStatements);
+                } catch (Exception ex) {
+                    writer.rollback(savepoint);
+                    writer.releaseSavepoint(savepoint);
+                    errors[i] = ex;
+                } finally {
+                    taskStatements = null;
+                }
+            }
+            writer.commit();
+        } catch (SQLException ex) {
+            log.error("Error committing {} writes", group.size(), ex);
+            try {
+                writer.rollback();
+            } catch (SQLException rollbackEx) {
+                log.error("Error rolling back", rollbackEx);
+            }
+            group.forEach(task -> task.result().completeExceptionally(new DataException("Error committing transaction", ex)));
+            return;
+        } finally {
+            try {
+                writer.setAutoCommit(true);
+            } catch (SQLException ex) {
+                log.error("Error restoring autocommit", ex);
+            }
+        }
+        //changes missing from the journal would be lost by a crash, they are committed and visible, so they are
+        //not failed but acknowledged once the snapshot taken for the failure holds them
+        boolean journaled = appendToJournal(committed);
+        for (int i = 0; i < group.size(); i++) {
+            CompletableFuture<Object> result = group.get(i).result();
+            Object value = results[i];
+            if (errors[i] != null) result.completeExceptionally(errors[i]);
+            else if (journaled) result.complete(value);
+            else unjournaled.add(() -> result.complete(value));
+        }
+    }
+
+    /**
+     * Appends the statements of a commit to the journal. If the journal cannot be written, the changes are
+     * only in the plain database, so writes are refused and a snapshot is requested at once.
+     *
+     * @param statements statements committed
+     * @return false if the journal could not be written
+     */
+    private boolean appendToJournal(List<ChangeJournal.Statement> statements) {
+        if (statements.isEmpty()) return true;
+        try {
+            journal.append(statements);
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            log.error("Error writing journal, writes are refused until a snapshot is taken", ex);
+            journalFailed = true;
+            CompletableFuture.runAsync(this::checkpoint);
+            return false;
+        }
+    }
+
     /**
      * Fill the parameters of a prepared statement
      *
@@ -213,29 +634,236 @@ public class DataService {
         }
     }
 
-    public void updateEncryptedDb() {
-        try (var fis = Files.newInputStream(dbPath)) {
-            CryptHelper.encrypt(fis, encryptedDb, key);
+    /**
+     * Replaces the snapshot when the journal is large enough, or when it could not be written
+     */
+    public void checkpoint() {
+        try {
+            compact(false, journalCompactBytes);
+        } catch (DataException ex) {
+            log.error("Error taking database snapshot", ex);
+        }
+    }
+
+    /**
+     * Takes a snapshot with the backup API in the writer thread, so it holds exactly the commits written to
+     * the current journal, and starts the journal of the new generation. Then the snapshot is encrypted and
+     * published out of the writer thread, and the journals it replaces are deleted. If the process stops
+     * before publishing, the old snapshot and both journals are replayed at startup.
+     *
+     * @param force    true to take the snapshot even if there are no changes
+     * @param minBytes size the journal must reach to take the snapshot
+     */
+    private void compact(boolean force, long minBytes) {
+        synchronized (compactLock) {
+            Snapshot snapshot = submit(() -> {
+                boolean changed = journal != null && journal.records() > 0 && journal.size() >= minBytes;
+                if (!force && !journalFailed && !changed) return null;
+                boolean recovering = journalFailed;
+                List<Runnable> acknowledgements = unjournaled;
+                unjournaled = new ArrayList<>();
+                try {
+                    takeSnapshot(recovering);
+                } catch (Exception ex) {
+                    //the writes are committed, a failed snapshot does not undo them
+                    acknowledgements.forEach(Runnable::run);
+                    throw ex;
+                }
+                return new Snapshot(generation, recovering, acknowledgements);
+            }, false);
+            if (snapshot == null) return;
+            long next = snapshot.generation();
+            Path encryptedTemp = dataPath.resolve("db.tmp");
+            try {
+                try (var fis = Files.newInputStream(snapshotPath)) {
+                    CryptHelper.encrypt(fis, encryptedTemp, key);
+                }
+                try (var channel = FileChannel.open(encryptedTemp, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+                Files.move(encryptedTemp, encryptedDb, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                deleteJournals(next);
+                publishedGeneration = next;
+                Files.deleteIfExists(snapshotPath);
+            } catch (IOException ex) {
+                throw new DataException("Error updating database", ex);
+            } finally {
+                if (!snapshot.acknowledgements().isEmpty()) {
+                    log.info("Acknowledging {} writes committed while the journal was unavailable", snapshot.acknowledgements().size());
+                    snapshot.acknowledgements().forEach(Runnable::run);
+                }
+            }
+            if (snapshot.recovering()) {
+                submit(() -> journalFailed = false, false);
+                log.info("Database journal recovered, writes are accepted again");
+            }
+            log.info("Database snapshot {} published", next);
+        }
+    }
+
+    /**
+     * Writes the database to the snapshot file with the backup API and starts the journal of the next generation,
+     * runs in the writer thread
+     *
+     * @param recovering true if the current journal failed
+     */
+    private void takeSnapshot(boolean recovering) throws SQLException, IOException {
+        long nextGeneration = generation + 1;
+        try (var stmt = writer.prepareStatement("INSERT OR REPLACE INTO parameters (ikey, value) VALUES (?, ?)")) {
+            stmt.setInt(1, Parameter.SNAPSHOT_GENERATION.getValue());
+            stmt.setString(2, String.valueOf(nextGeneration));
+            stmt.execute();
+        }
+        Files.deleteIfExists(snapshotPath);
+        try (var stmt = writer.createStatement()) {
+            stmt.executeUpdate("backup to \"" + snapshotPath.toAbsolutePath() + "\"");
+        }
+        if (journal != null) journal.close();
+        journal = null;
+        journalFailed = true;
+        journal = ChangeJournal.create(journalPath(nextGeneration), key);
+        //after a journal failure the new journal is only valid once the snapshot is published
+        journalFailed = recovering;
+        generation = nextGeneration;
+    }
+
+    /**
+     * Applies the journals written after the snapshot, in order of generation
+     *
+     * @return number of transactions replayed
+     */
+    private long replayJournals() {
+        String sql = "SELECT value FROM parameters WHERE ikey = ?";
+        try (var stmt = writer.prepareStatement(sql)) {
+            stmt.setInt(1, Parameter.SNAPSHOT_GENERATION.getValue());
+            try (var rs = stmt.executeQuery()) {
+                publishedGeneration = rs.next() ? Long.parseLong(rs.getString(1)) : 0;
+            }
+        } catch (SQLException ex) {
+            throw new DataException("Error reading snapshot generation", ex);
+        }
+        generation = publishedGeneration;
+        long replayed = 0;
+        for (long g = publishedGeneration; Files.exists(journalPath(g)); g++) {
+            try {
+                replayed += ChangeJournal.replay(journalPath(g), key, this::applyJournalRecord);
+            } catch (IOException ex) {
+                throw new DataException("Error reading journal " + g, ex);
+            }
+            generation = g;
+        }
+        if (replayed > 0) log.info("Replayed {} transactions from the journal", replayed);
+        return replayed;
+    }
+
+    private void applyJournalRecord(List<ChangeJournal.Statement> statements) {
+        try {
+            writer.setAutoCommit(false);
+            try {
+                for (ChangeJournal.Statement statement : statements) {
+                    try (var stmt = writer.prepareStatement(statement.sql())) {
+                        fillParameters(stmt, statement.params());
+                        stmt.execute();
+                    }
+                }
+                writer.commit();
+            } catch (SQLException ex) {
+                writer.rollback();
+                throw ex;
+            } finally {
+                writer.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            throw new DataException("Error replaying journal", ex);
+        }
+    }
+
+    private Path journalPath(long generation) {
+        return dataPath.resolve("journal-" + generation);
+    }
+
+    /**
+     * Deletes the journals replaced by a snapshot
+     *
+     * @param before generation of the snapshot
+     */
+    private void deleteJournals(long before) {
+        try (var files = Files.list(dataPath)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (!name.matches("journal-\\d+")) continue;
+                if (Long.parseLong(name.substring("journal-".length())) < before) Files.delete(file);
+            }
         } catch (IOException ex) {
-            throw new DataException("Error updating database", ex);
+            throw new DataException("Error deleting journals", ex);
         }
     }
 
     @PreDestroy
     public void close() {
         log.info("Closing database");
+        //next start does not need to replay the journal
         try {
-            connection.close();
-        } catch (SQLException ex) {
+            compact(false, 0);
+        } catch (DataException ex) {
+            log.error("Error taking database snapshot, the journal will be replayed at startup", ex);
+        }
+        for (StatementCache reader : allReaders) {
+            try {
+                reader.close();
+            } catch (SQLException ex) {
+                log.error("Error closing reader connection", ex);
+            }
+        }
+        writeQueue.add(STOP);
+        try {
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            writerStatements.close();
+            if (journal != null) journal.close();
+        } catch (SQLException | IOException ex) {
             log.error("Error closing db file", ex);
         }
-        updateEncryptedDb();
         try {
             Files.delete(dbPath);
+            Files.deleteIfExists(Path.of(dbPath + "-wal"));
+            Files.deleteIfExists(Path.of(dbPath + "-shm"));
         } catch (IOException ex) {
             log.error("Error deleting db file", ex);
         }
     }
 
+    /**
+     * Function processing a result set
+     *
+     * @param <T> the return type
+     */
+    @FunctionalInterface
+    private interface ResultSetFunction<T> {
+        T apply(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Task queued to the writer thread
+     *
+     * @param work          work using the writer connection
+     * @param transactional false if the work must run outside a transaction
+     * @param result        completed with the result after the commit
+     */
+    private record WriteTask(Callable<?> work, boolean transactional, CompletableFuture<Object> result) {
+    }
+
+    /**
+     * Snapshot taken by the writer thread, waiting to be published
+     *
+     * @param generation       generation of the snapshot
+     * @param recovering       true if it replaces a journal that failed
+     * @param acknowledgements results of the writes missing from the failed journal
+     */
+    private record Snapshot(long generation, boolean recovering, List<Runnable> acknowledgements) {
+    }
 
 }
@@ -2,31 +2,42 @@ package net.vjdv.filecalli.services;
 
 import lombok.extern.slf4j.Slf4j;
 import net.vjdv.filecalli.dto.SessionDTO;
+import net.vjdv.filecalli.dto.SessionStatsDTO;
 import net.vjdv.filecalli.dto.WebdavSessionDTO;
 import net.vjdv.filecalli.enums.Role;
 import net.vjdv.filecalli.exceptions.LoginException;
 import net.vjdv.filecalli.exceptions.ServiceException;
 import net.vjdv.filecalli.util.Configuration;
 import net.vjdv.filecalli.util.CryptHelper;
+import net.vjdv.filecalli.util.SessionStore;
 import org.springframework.stereotype.Service;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map;
 
+/**
+ * Web sessions live until the duration chosen at login. Webdav clients send their credentials with every
+ * request, so a webdav login is remembered for a while and then the token is checked again.
+ */
 @Slf4j
 @Service
 public class SessionService {
 
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 512;
+
     private final DataService dataService;
-    private final Map<String, SessionDTO> sessions = new HashMap<>();
-    private final Map<String, WebdavSessionDTO> wdSessions = new HashMap<>();
+    private final SessionStore<SessionDTO> sessions;
+    private final SessionStore<WebdavSessionDTO> wdSessions;
+    private final long webdavSessionTtl;
 
-    public SessionService(DataService dataService) {
+    public SessionService(DataService dataService, Configuration configuration) {
         this.dataService = dataService;
+        sessions = new SessionStore<>(configuration.getMaxSessions(), TICK_MILLIS, WHEEL_SIZE);
+        wdSessions = new SessionStore<>(configuration.getMaxSessions(), TICK_MILLIS, WHEEL_SIZE);
+        webdavSessionTtl = configuration.getWebdavSessionTtl() * 1000;
     }
 
     /**
@@ -64,7 +75,7 @@ public class SessionService {
             }
             //session object
             SessionDTO session = new SessionDTO(userId, name, role, rootDir, System.currentTimeMillis() + duration, key, webdavKey);
-            sessions.put(uid, session);
+            sessions.put(uid, session, duration);
         }, userId, CryptHelper.hashBytes(pass));
         return uid;
     }
@@ -77,12 +88,8 @@ public class SessionService {
      */
     public SessionDTO getSession(String uid) {
         if (uid == null) throw new LoginException("No uid was provided");
-        if (!sessions.containsKey(uid)) throw new LoginException("Session not found");
         var session = sessions.get(uid);
-        if (session.expiration() < System.currentTimeMillis()) {
-            sessions.remove(uid);
-            throw new LoginException("Session expired");
-        }
+        if (session == null) throw new LoginException("Session not found or expired");
         return session;
     }
 
@@ -95,7 +102,8 @@ public class SessionService {
      */
     public WebdavSessionDTO getSessionFromBasicAuth(String b64) {
         if (b64 == null) throw new LoginException("No basic auth was provided");
-        if (wdSessions.containsKey(b64)) return wdSessions.get(b64);
+        var cached = wdSessions.get(b64);
+        if (cached != null) return cached;
         //reads base64 and extract values
         String[] parts;
         try {
@@ -123,8 +131,30 @@ public class SessionService {
             return new WebdavSessionDTO(parts[0], path, role, rootDir, key);
         }, parts[1], parts[0]).orElseThrow(() -> new LoginException("invalid user or password"));
         //cache and return
-        wdSessions.put(b64, session);
+        wdSessions.put(b64, session, webdavSessionTtl);
         return session;
     }
 
+    /**
+     * Removes the expired sessions
+     */
+    public void expireSessions() {
+        sessions.tick();
+        wdSessions.tick();
+    }
+
+    /**
+     * @return counters of the web sessions
+     */
+    public SessionStatsDTO sessionStats() {
+        return sessions.stats();
+    }
+
+    /**
+     * @return counters of the webdav sessions
+     */
+    public SessionStatsDTO webdavSessionStats() {
+        return wdSessions.stats();
+    }
+
 }
@@ -0,0 +1,211 @@
+package net.vjdv.filecalli.services;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import net.vjdv.filecalli.dto.StatementStatsDTO;
+import net.vjdv.filecalli.exceptions.DataException;
+import net.vjdv.filecalli.util.Configuration;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes the data of each user to its database. With shards enabled every user has its own encrypted
+ * database in data/shards/N, with its own writer, holding its directories, files and blobs, while the main
+ * database is the catalog of users and webdav tokens. Users without a shard keep their tree in the main
+ * database.
+ * <p>
+ * The root directory of a user keeps the id given by the main database, so root directories are unique
+ * across databases and the data of a request is found by its root directory.
+ */
+@Slf4j
+@Service
+public class ShardService {
+
+    private static final String TREE = "WITH RECURSIVE tree(id) AS (SELECT ? UNION ALL SELECT d.id FROM directories d JOIN tree ON d.parent = tree.id) ";
+
+    private final DataService catalog;
+    private final Configuration config;
+    private final Map<Integer, DataService> byRoot = new ConcurrentHashMap<>();
+    private final Map<Integer, DataService> shards = new ConcurrentHashMap<>();
+
+    public ShardService(DataService dataService, Configuration configuration) {
+        this.catalog = dataService;
+        this.config = configuration;
+        if (configuration.isDbShards()) {
+            String sql = "SELECT id, root_directory FROM users WHERE shard IS NULL";
+            var users = catalog.selectList(sql, rs -> new UserRoot(rs.getString(1), rs.getInt(2)));
+            users.forEach(this::moveToShard);
+        }
+    }
+
+    /**
+     * Database holding the tree of a root directory
+     *
+     * @param rootDir user root directory
+     * @return the shard of the user, or the main database if the user has no shard
+     */
+    public DataService forRoot(int rootDir) {
+        var db = byRoot.get(rootDir);
+        if (db != null) return db;
+        String sql = "SELECT shard FROM users WHERE root_directory = ?";
+        int shard = catalog.selectOne(sql, rs -> rs.getInt(1), rootDir).orElse(0);
+        db = shard == 0 ? catalog : openShard(shard);
+        byRoot.put(rootDir, db);
+        return db;
+    }
+
+    /**
+     * @return the main database and the shards opened since the start
+     */
+    public List<DataService> databases() {
+        List<DataService> databases = new ArrayList<>();
+        databases.add(catalog);
+        databases.addAll(shards.values());
+        return databases;
+    }
+
+    /**
+     * Replaces the snapshots of the databases whose journal is large enough
+     */
+    public void checkpoint() {
+        catalog.checkpoint();
+        shards.values().forEach(DataService::checkpoint);
+    }
+
+    /**
+     * @return statistics of the prepared statement caches of all databases
+     */
+    public StatementStatsDTO statementStats() {
+        var stats = catalog.statementStats();
+        long hits = stats.hits();
+        long misses = stats.misses();
+        long evictions = stats.evictions();
+        for (DataService shard : shards.values()) {
+            stats = shard.statementStats();
+            hits += stats.hits();
+            misses += stats.misses();
+            evictions += stats.evictions();
+        }
+        return new StatementStatsDTO(hits, misses, evictions);
+    }
+
+    /**
+     * Opens the database of a shard, creating it if it does not exist
+     *
+     * @param shard shard id, the root directory of its user
+     * @return the database
+     */
+    private DataService openShard(int shard) {
+        return shards.computeIfAbsent(shard, id -> {
+            Path dataPath = shardDataPath(id);
+            try {
+                Files.createDirectories(dataPath);
+            } catch (IOException ex) {
+                throw new DataException("Error creating shard " + id, ex);
+            }
+            Path tempPath = config.getTempPath().resolve("shards").resolve(String.valueOf(id));
+            return new DataService(config, dataPath, tempPath, "shard-" + id, true);
+        });
+    }
+
+    /**
+     * Copies the tree of a user to a new shard, moves its blobs, and then marks the user and deletes the tree
+     * from the main database in one transaction. If the process stops before that transaction, the next
+     * start creates the shard again.
+     *
+     * @param user user to move
+     */
+    private void moveToShard(UserRoot user) {
+        int rootDir = user.rootDir();
+        log.info("Moving user {} to shard {}", user.userId(), rootDir);
+        deleteShardDatabase(shardDataPath(rootDir));
+        DataService shard = openShard(rootDir);
+        String sql1 = TREE + "SELECT id, name, parent, created_at, last_modified, ctag FROM directories WHERE id IN tree";
+        List<Object[]> dirs = catalog.selectList(sql1, rs -> new Object[]{rs.getInt(1), rs.getString(2), rs.getObject(3), rs.getLong(4), rs.getLong(5), rs.getLong(6)}, rootDir);
+        String sql2 = TREE + "SELECT id, name, mime, size, created_at, last_modified, directory_id, blob_id, version FROM files WHERE directory_id IN tree";
+        List<Object[]> files = catalog.selectList(sql2, rs -> new Object[]{rs.getInt(1), rs.getString(2), rs.getString(3), rs.getLong(4), rs.getLong(5), rs.getLong(6), rs.getInt(7), rs.getInt(8), rs.getLong(9)}, rootDir);
+        String sql3 = TREE + "SELECT id, refs, created_at FROM blobs WHERE id IN (SELECT blob_id FROM files WHERE directory_id IN tree)";
+        List<Object[]> blobs = catalog.selectList(sql3, rs -> new Object[]{rs.getInt(1), rs.getInt(2), rs.getLong(3)}, rootDir);
+        String sql4 = "SELECT id, root, path, directory, deleted, created_at FROM changes WHERE root = ?";
+        List<Object[]> changes = catalog.selectList(sql4, rs -> new Object[]{rs.getLong(1), rs.getInt(2), rs.getString(3), rs.getInt(4), rs.getInt(5), rs.getLong(6)}, rootDir);
+        String sql5 = "SELECT name, seq FROM sqlite_sequence WHERE name IN ('directories', 'files', 'blobs', 'changes')";
+        List<Object[]> sequences = catalog.selectList(sql5, rs -> new Object[]{rs.getString(1), rs.getLong(2)});
+        shard.inTransaction(() -> {
+            dirs.forEach(row -> shard.update("INSERT INTO directories (id, name, parent, created_at, last_modified, ctag) VALUES (?, ?, ?, ?, ?, ?)", row));
+            files.forEach(row -> shard.update("INSERT INTO files (id, name, mime, size, created_at, last_modified, directory_id, blob_id, version) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)", row));
+            blobs.forEach(row -> shard.update("INSERT INTO blobs (id, refs, created_at) VALUES (?, ?, ?)", row));
+            changes.forEach(row -> shard.update("INSERT INTO changes (id, root, path, directory, deleted, created_at) VALUES (?, ?, ?, ?, ?, ?)", row));
+            //ids keep growing from the main database, so ETags, change tags and sync tokens are not issued again
+            for (Object[] row : sequences) {
+                shard.update("DELETE FROM sqlite_sequence WHERE name = ?", row[0]);
+                shard.update("INSERT INTO sqlite_sequence (name, seq) VALUES (?, ?)", row);
+            }
+        });
+        //blobs keep their id, so they are moved before the main database forgets them
+        for (Object[] row : blobs) {
+            int blobId = (int) row[0];
+            Path src = StorageService.blobPath(catalog.getDataPath(), blobId);
+            Path dest = StorageService.blobPath(shard.getDataPath(), blobId);
+            try {
+                if (Files.exists(src)) {
+                    Files.createDirectories(dest.getParent());
+                    Files.move(src, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } else if (!Files.exists(dest)) {
+                    log.warn("Encrypted file of blob {} is missing", blobId);
+                }
+            } catch (IOException ex) {
+                throw new DataException("Error moving blob " + blobId + " to shard " + rootDir, ex);
+            }
+        }
+        catalog.inTransaction(() -> {
+            catalog.update("UPDATE users SET shard = ? WHERE id = ?", rootDir, user.userId());
+            catalog.update(TREE + "DELETE FROM blobs WHERE id IN (SELECT blob_id FROM files WHERE directory_id IN tree)", rootDir);
+            catalog.update(TREE + "DELETE FROM files WHERE directory_id IN tree", rootDir);
+            catalog.update(TREE + "DELETE FROM directories WHERE id IN tree", rootDir);
+            catalog.update("DELETE FROM changes WHERE root = ?", rootDir);
+        });
+        log.info("User {} moved to shard {} with {} directories and {} files", user.userId(), rootDir, dirs.size(), files.size());
+    }
+
+    /**
+     * Deletes the database and journals of a shard, its blobs are kept
+     */
+    private void deleteShardDatabase(Path dataPath) {
+        if (!Files.isDirectory(dataPath)) return;
+        try (var list = Files.list(dataPath)) {
+            for (Path file : list.toList()) {
+                String name = file.getFileName().toString();
+                if (name.equals("db") || name.equals("db.tmp") || name.matches("journal-\\d+")) Files.delete(file);
+            }
+        } catch (IOException ex) {
+            throw new DataException("Error deleting shard database " + dataPath, ex);
+        }
+    }
+
+    private Path shardDataPath(int shard) {
+        return config.getDataPath().resolve("shards").resolve(String.valueOf(shard));
+    }
+
+    @PreDestroy
+    public void close() {
+        shards.values().forEach(DataService::close);
+    }
+
+    /**
+     * User and its root directory
+     *
+     * @param userId  user id
+     * @param rootDir root directory id
+     */
+    private record UserRoot(String userId, int rootDir) {
+    }
+
+}
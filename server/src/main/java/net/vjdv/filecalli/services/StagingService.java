@@ -0,0 +1,268 @@
+package net.vjdv.filecalli.services;
+
+import lombok.extern.slf4j.Slf4j;
+import net.vjdv.filecalli.dto.StagingStatsDTO;
+import net.vjdv.filecalli.exceptions.InsufficientSpaceException;
+import net.vjdv.filecalli.exceptions.StorageException;
+import net.vjdv.filecalli.util.Configuration;
+import org.springframework.stereotype.Service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Space used by the files being stored before they are published. Each staging file reserves the bytes it
+ * holds from a shared quota, the declared size when it is created and the rest as the body is read. When the
+ * quota is used up, the request reading the body waits for other files to release their space, so the client
+ * is slowed down instead of filling the disk, and fails if the space is not released in time.
+ * <p>
+ * The quota bounds the files stored at the same time, not the size of a file: a file is always admitted when
+ * no other file holds space, so a file larger than the quota is stored alone.
+ * <p>
+ * The space is released when the staging file is closed, whether it was published or not. Staging files left
+ * by a process that stopped are deleted at startup.
+ * <p>
+ * A range appended to a resumable upload reserves its bytes while the request writes them, with
+ * {@link #reserve(long)}. The segments an upload keeps between requests are not counted, they are bounded by the
+ * upload expiry instead, because an upload may wait hours for its next range.
+ */
+@Slf4j
+@Service
+public class StagingService {
+
+    private final long quota;
+    private final long waitNanos;
+    private long used = 0;
+    private long peak = 0;
+    private int files = 0;
+    private long waits = 0;
+    private long rejections = 0;
+
+    public StagingService(Configuration configuration) {
+        this.quota = configuration.getStagingQuota();
+        this.waitNanos = TimeUnit.SECONDS.toNanos(configuration.getStagingWait());
+        sweep(configuration.getDataPath(), configuration.getTempPath());
+    }
+
+    /**
+     * Creates a staging file in the data directory of a database, so it can be renamed to a blob
+     *
+     * @param dataPath data directory of the database
+     * @param size     declared size of the content, reserved up to the quota before creating the file; -1 if unknown
+     * @return the staging file, must be closed
+     * @throws InsufficientSpaceException if the size cannot be reserved in time
+     */
+    public StagingFile create(Path dataPath, long size) {
+        long reserved = Math.min(Math.max(size, 0), quota);
+        reserve(reserved, 0);
+        try {
+            Path dir = Files.createDirectories(dataPath.resolve("staging"));
+            Path path = Files.createTempFile(dir, "store", ".tmp");
+            synchronized (this) {
+                files++;
+            }
+            return new StagingFile(path, reserved);
+        } catch (IOException ex) {
+            release(reserved);
+            throw new StorageException("Error creating staging file", ex);
+        }
+    }
+
+    /**
+     * Reserves space for bytes written to a file that is not a staging file, such as the file of a resumable upload
+     *
+     * @param size bytes to write, reserved up to the quota; -1 if unknown
+     * @return the reservation, must be closed once the bytes are written
+     * @throws InsufficientSpaceException if the size cannot be reserved in time
+     */
+    public Reservation reserve(long size) {
+        long reserved = Math.min(Math.max(size, 0), quota);
+        reserve(reserved, 0);
+        return new Reservation(reserved);
+    }
+
+    /**
+     * @return usage of the staging space
+     */
+    public synchronized StagingStatsDTO stats() {
+        return new StagingStatsDTO(used, peak, quota, files, waits, rejections);
+    }
+
+    /**
+     * Waits until the bytes fit in the quota, or no other file holds space, and reserves them
+     *
+     * @param bytes bytes to reserve
+     * @param own   bytes already reserved by the file asking
+     */
+    private synchronized void reserve(long bytes, long own) {
+        if (!fits(bytes, own)) waits++;
+        long deadline = System.nanoTime() + waitNanos;
+        while (!fits(bytes, own)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                rejections++;
+                throw new InsufficientSpaceException("Staging space full, " + used + " of " + quota + " bytes used");
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InsufficientSpaceException("Interrupted waiting for staging space");
+            }
+        }
+        used += bytes;
+        peak = Math.max(peak, used);
+    }
+
+    private boolean fits(long bytes, long own) {
+        return used == own || used + bytes <= quota;
+    }
+
+    private synchronized void release(long bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Deletes the staging files of the main database and the shards, and the temporary files of previous versions
+     */
+    private void sweep(Path dataPath, Path tempPath) {
+        List<Path> dirs = new ArrayList<>();
+        dirs.add(dataPath.resolve("staging"));
+        try (Stream<Path> shards = Files.list(dataPath.resolve("shards"))) {
+            shards.forEach(shard -> dirs.add(shard.resolve("staging")));
+        } catch (IOException ex) {
+            //no shards yet
+        }
+        int deleted = 0;
+        for (Path dir : dirs) {
+            deleted += deleteFiles(dir, "*");
+        }
+        deleted += deleteFiles(tempPath, "fc*.tmp");
+        if (deleted > 0) log.info("Deleted {} staging files left by a previous run", deleted);
+    }
+
+    private int deleteFiles(Path dir, String glob) {
+        if (!Files.isDirectory(dir)) return 0;
+        int deleted = 0;
+        try (var stream = Files.newDirectoryStream(dir, glob)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file) && Files.deleteIfExists(file)) deleted++;
+            }
+        } catch (IOException ex) {
+            log.warn("Error deleting staging files in {}", dir, ex);
+        }
+        return deleted;
+    }
+
+    /**
+     * Space held until it is closed. Used by the thread writing the bytes.
+     */
+    public class Reservation implements AutoCloseable {
+
+        private long reserved;
+        private long charged = 0;
+        private boolean closed = false;
+
+        private Reservation(long reserved) {
+            this.reserved = reserved;
+        }
+
+        /**
+         * Wraps the content written to the file, the bytes read beyond the reserved size are reserved as they
+         * are read, waiting for space if needed. The encryption adds a few bytes per segment that are not counted.
+         *
+         * @param input content of the file
+         * @return stream reading the same content
+         */
+        public InputStream track(InputStream input) {
+            return new FilterInputStream(input) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) charge(1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read > 0) charge(read);
+                    return read;
+                }
+            };
+        }
+
+        private void charge(long bytes) {
+            charged += bytes;
+            if (charged <= reserved) return;
+            reserve(charged - reserved, reserved);
+            reserved = charged;
+        }
+
+        /**
+         * Releases the space
+         */
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            discard();
+            release(reserved);
+        }
+
+        /**
+         * Runs once when the reservation is closed, before its space is released
+         */
+        void discard() {
+        }
+
+    }
+
+    /**
+     * File being stored, its space is held until it is closed. Used by the thread storing it.
+     */
+    public class StagingFile extends Reservation {
+
+        private final Path path;
+
+        private StagingFile(Path path, long reserved) {
+            super(reserved);
+            this.path = path;
+        }
+
+        /**
+         * @return path of the file
+         */
+        public Path path() {
+            return path;
+        }
+
+        /**
+         * Deletes the file if it was not published
+         */
+        @Override
+        /**
+         * Runs once when the reservation is closed, before its space is released
+         */
+        void discard() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ex) {
+                log.warn("Error deleting staging file {}", path, ex);
+            }
+            synchronized (StagingService.this) {
+                files--;
+            }
+        }
+
+    }
+
+}
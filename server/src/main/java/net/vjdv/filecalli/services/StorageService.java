@@ -2,34 +2,41 @@ package net.vjdv.filecalli.services;
 
 import lombok.extern.slf4j.Slf4j;
 import net.vjdv.filecalli.dto.*;
+import net.vjdv.filecalli.exceptions.InsufficientSpaceException;
+import net.vjdv.filecalli.exceptions.PreconditionFailedException;
 import net.vjdv.filecalli.exceptions.ResourceNotFoundException;
 import net.vjdv.filecalli.exceptions.StorageException;
 import net.vjdv.filecalli.util.Configuration;
 import net.vjdv.filecalli.util.CryptHelper;
+import net.vjdv.filecalli.util.DecryptedFileResource;
+import net.vjdv.filecalli.util.DirectoryTree;
+import net.vjdv.filecalli.util.Utils;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 @Slf4j
 @Service
 public class StorageService {
 
-    private final DataService dataService;
-    private final TasksService tasksService;
-    private final Configuration config;
+    private final ShardService shardService;
+    private final StagingService stagingService;
+    private final DirectoryTree directoryTree;
 
-    public StorageService(DataService dataService, TasksService tasksService, Configuration configuration) {
-        this.dataService = dataService;
-        this.tasksService = tasksService;
-        this.config = configuration;
+    public StorageService(ShardService shardService, StagingService stagingService, Configuration configuration) {
+        this.shardService = shardService;
+        this.stagingService = stagingService;
+        this.directoryTree = new DirectoryTree(configuration.getDirCacheSize());
     }
 
     /**
@@ -40,17 +47,18 @@ public class StorageService {
      * @return list of directories and files
      */
     public List<ListedResource> list(String path, int rootDir) {
+        DataService db = shardService.forRoot(rootDir);
         int directoryId = resolveDir(path, rootDir, true).id();
         // directories
         String sql1 = "SELECT id, name FROM directories WHERE parent = ?";
-        List<ListedResource> dirs = dataService.queryList(sql1, rs -> {
+        List<ListedResource> dirs = db.queryList(sql1, rs -> {
             String name = rs.getString("name");
             String dirPath = "/".equals(path) ? ("/" + name) : (path + "/" + name);
             return new ListedResource(name, true, false, dirPath, 0, 0, 0);
         }, directoryId);
         // files
         String sql2 = "SELECT id, name, size, created_at, last_modified FROM files WHERE directory_id = ?";
-        List<ListedResource> files = dataService.queryList(sql2, rs -> {
+        List<ListedResource> files = db.queryList(sql2, rs -> {
             String name = rs.getString("name");
             String filePath = "/".equals(path) ? ("/" + name) : (path + "/" + name);
             int size = rs.getInt("size");
@@ -76,74 +84,108 @@ public class StorageService {
         if ("/".equals(path)) throw new StorageException("Invalid directory name");
         if (!path.startsWith("/")) throw new StorageException("Path must start with /");
         if (path.endsWith("/")) throw new StorageException("Directory name must not end with /");
+        DataService db = shardService.forRoot(session.rootDir());
         long now = Instant.now().toEpochMilli();
         var dataDir = resolveDir(path, session.rootDir(), false);
         if (dataDir.id() != 0) {
             throw new StorageException("Directory already exists");
         }
         String sql = "INSERT INTO directories (name, parent, created_at, last_modified) VALUES (?, ?, ?, ?)";
-        return dataService.insertAutoincrement(sql, dataDir.name(), dataDir.parentId(), now, now);
+        return db.inTransaction(() -> {
+            recordChange(db, session.rootDir(), dataDir.parentId(), path, true, false);
+            return db.insertAutoincrement(sql, dataDir.name(), dataDir.parentId(), now, now);
+        });
     }
 
     /**
-     * Stores a file in the storage
+     * Stores a file in the storage, its size is the count of bytes read from the input. The content is encrypted
+     * to a staging file and published when complete, so readers of the previous content are not affected and a
+     * failed upload leaves it as it was. The staging file holds its space until the file is published.
      *
-     * @param filePath      user's file path
-     * @param multipartFile file to store
-     * @param session       user's session
+     * @param filePath user's file path
+     * @param mime     file mime type
+     * @param size     declared file size, the file is not stored if a different count is read; -1 if unknown
+     * @param input    file input stream
+     * @param session  user's session
+     * @throws InsufficientSpaceException if there is no staging space for the file
      */
+    public void store(String filePath, String mime, long size, InputStream input, SessionDTO session) {
+        store(filePath, mime, size, input, session, null);
+    }
 
-    public void store(String filePath, MultipartFile multipartFile, SessionDTO session) {
-        try {
-            store(filePath, multipartFile.getContentType(), multipartFile.getSize(), multipartFile.getInputStream(), session);
+    /**
+     * Stores a file only if the path is still in the state its preconditions were evaluated against when the
+     * file is published
+     *
+     * @param expected state the path must have, null to store it unconditionally
+     * @throws PreconditionFailedException if the path changed, the content is discarded
+     * @see #store(String, String, long, InputStream, SessionDTO)
+     */
+    public void store(String filePath, String mime, long size, InputStream input, SessionDTO session, ResourceStateDTO expected) {
+        DataService db = shardService.forRoot(session.rootDir());
+        //validates the parent directory before receiving anything
+        resolveFile(filePath, session.rootDir());
+        SecretKey key = session.key();
+        if (filePath.startsWith("/webdav/")) key = session.webdavKey();
+        //closing deletes the staging file after a failure, after publishing it is already gone
+        try (var staging = stagingService.create(db.getDataPath(), size)) {
+            long plainSize = CryptHelper.encrypt(staging.track(input), staging.path(), key);
+            if (size >= 0 && plainSize != size) throw new IOException("Read " + plainSize + " bytes of " + size + " declared");
+            publish(filePath, mime, plainSize, staging.path(), session.rootDir(), expected);
         } catch (IOException ex) {
-            throw new StorageException("Error getting inputStream from multipartFile", ex);
+            throw new StorageException("Error storing file", ex);
         }
     }
 
     /**
-     * Stores a file in the storage
+     * Publishes an encrypted file as the content of a path. The file is moved into a new blob, so it must be in
+     * the data directory of the user, and the row of the file points to the blob in one transaction; readers
+     * of the previous blob keep reading it until they finish.
      *
-     * @param filePath user's file path
-     * @param mime     file mime type
-     * @param size     file size
-     * @param input    file input stream
-     * @param session  user's session
+     * @param filePath  user's file path
+     * @param mime      file mime type
+     * @param size      plain size of the file
+     * @param encrypted encrypted file, moved to the blob
+     * @param rootDir   user's root directory
+     * @param expected  state the path must have in the transaction, null to publish unconditionally
+     * @throws PreconditionFailedException if the path changed, the encrypted file is deleted
      */
-    public void store(String filePath, String mime, long size, InputStream input, SessionDTO session) {
-        //Resolves dirId and fileId
-        var data1 = resolveFile(filePath, session.rootDir());
-        int dirId = data1.directoryId();
-        int idFile = data1.id();
-        //some data
-        long now = Instant.now().toEpochMilli();
-        //insert row if file does not exist
-        if (idFile == 0) {
-            String sql = "INSERT INTO files (name, mime, size, directory_id, created_at, last_modified) VALUES (?, ?, 0, ?, ?, 0)";
-            idFile = dataService.insertAutoincrement(sql, data1.name(), mime, dirId, now);
-        }
-        log.info("Storing {} file id={}", data1.id() == 0 ? "new" : "existing", idFile);
-        Path fileDestPath = computeFilePath(idFile);
-        Path parent = fileDestPath.getParent();
-        //parent directory must exist
-        if (!Files.exists(parent)) {
-            try {
-                Files.createDirectories(parent);
-            } catch (IOException ex) {
-                throw new StorageException("Error creating directories", ex);
-            }
-        }
-        //store the file
-        SecretKey key = session.key();
-        if (filePath.startsWith("/webdav/")) key = session.webdavKey();
+    public void publish(String filePath, String mime, long size, Path encrypted, int rootDir, ResourceStateDTO expected) {
+        DataService db = shardService.forRoot(rootDir);
+        var data = resolveFile(filePath, rootDir);
+        int blobId = createBlob(db);
         try {
-            CryptHelper.encrypt(input, fileDestPath, key);
+            Files.move(encrypted, prepareBlobPath(db, blobId), StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException ex) {
-            throw new StorageException("Error storing file", ex);
+            if (db.inTransaction(() -> releaseBlob(db, blobId))) deleteBlobFile(db, blobId);
+            throw new StorageException("Error publishing file", ex);
+        }
+        long now = Instant.now().toEpochMilli();
+        FileRow previous;
+        try {
+            previous = db.inTransaction(() -> {
+                //the row is read again in the transaction, another upload of the path may have finished first
+                String sql = "SELECT id, blob_id, version FROM files WHERE directory_id = ? AND name = ?";
+                var current = db.queryOne(sql, rs -> new FileRow(rs.getInt(1), rs.getInt(2), false, Utils.fileETag(rs.getInt(1), rs.getLong(3))), data.directoryId(), data.name()).orElse(null);
+                checkExpected(filePath, current == null ? null : current.etag(), expected);
+                if (current == null) {
+                    String sql2 = "INSERT INTO files (name, mime, size, directory_id, created_at, last_modified, blob_id) VALUES (?, ?, ?, ?, ?, ?, ?)";
+                    db.insertAutoincrement(sql2, data.name(), mime, size, data.directoryId(), now, now, blobId);
+                } else {
+                    String sql2 = "UPDATE files SET mime = ?, size = ?, last_modified = ?, blob_id = ?, version = version + 1 WHERE id = ?";
+                    db.update(sql2, mime, size, now, blobId, current.id());
+                }
+                recordChange(db, rootDir, data.directoryId(), filePath, false, false);
+                return current == null ? null : new FileRow(current.id(), current.blobId(), releaseBlob(db, current.blobId()), current.etag());
+            });
+        } catch (RuntimeException ex) {
+            //the new blob is not referenced by any file
+            if (db.inTransaction(() -> releaseBlob(db, blobId))) deleteBlobFile(db, blobId);
+            throw ex;
         }
-        //update the file size
-        String sql = "UPDATE files SET size = ?, last_modified = ? WHERE id = ?";
-        dataService.update(sql, size, now, idFile);
+        //the previous blob is shared with copies or deleted
+        if (previous != null && previous.unreferenced()) deleteBlobFile(db, previous.blobId());
+        log.info("Published {} file {} blob={}", previous == null ? "new" : "existing", filePath, blobId);
     }
 
     /**
@@ -151,21 +193,43 @@ public class StorageService {
      *
      * @param filePath user's file path
      * @param session  user's session
-     * @return file data like id and size
+     * @return file data like id and size, the content is decrypted while it is read
      * @throws ResourceNotFoundException if the file does not exist
      */
     public RetrievedFileDTO retrieve(String filePath, SessionDTO session) {
         var data = resolveFile(filePath, session.rootDir());
         if (data.id() == 0) throw new ResourceNotFoundException("File " + filePath + " does not exist");
-        Path inputFile = computeFilePath(data.id());
+        return retrieve(data, session);
+    }
+
+    /**
+     * Retrieves a file already resolved, like after evaluating the preconditions of a request. The blob is
+     * opened here, so the content can be read after a new version replaces it; if it was replaced since the
+     * file was resolved, the current version is retrieved.
+     *
+     * @param data    file data from {@link #resolveFile(String, int)}
+     * @param session user's session
+     * @return file data like id and size, the content is decrypted while it is read; its resource must be closed
+     * @throws ResourceNotFoundException if the file was deleted since it was resolved
+     */
+    public RetrievedFileDTO retrieve(FileDataDTO data, SessionDTO session) {
+        DataService db = shardService.forRoot(session.rootDir());
         SecretKey key = session.key();
-        if (filePath.startsWith("/webdav/")) key = session.webdavKey();
-        try (var inputStream = Files.newInputStream(inputFile)) {
-            var outputPath = tasksService.getTempFile();
-            CryptHelper.decrypt(inputStream, outputPath, key);
-            return new RetrievedFileDTO(data, outputPath);
-        } catch (IOException ex) {
-            throw new StorageException("Error retrieving file", ex);
+        if (data.path().startsWith("/webdav/")) key = session.webdavKey();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                var resource = new DecryptedFileResource(computeFilePath(db, data.blobId()), key, data.name(), data.size(), data.lastModified());
+                return new RetrievedFileDTO(data, resource);
+            } catch (NoSuchFileException ex) {
+                var current = resolveFile(data.path(), session.rootDir());
+                if (!current.exists()) throw new ResourceNotFoundException("File " + data.path() + " does not exist");
+                if (current.blobId() == data.blobId() || attempt == 3) {
+                    throw new StorageException("Encrypted file of " + data.path() + " is missing");
+                }
+                data = current;
+            } catch (IOException ex) {
+                throw new StorageException("Error opening " + data.path(), ex);
+            }
         }
     }
 
@@ -177,16 +241,33 @@ public class StorageService {
      * @throws ResourceNotFoundException if the file does not exist
      */
     public void delete(String filePath, int rootDir) {
+        delete(filePath, rootDir, null);
+    }
+
+    /**
+     * Deletes a file if it is still in the state the preconditions of the request were evaluated against
+     *
+     * @param filePath user's file path
+     * @param rootDir  user's root directory
+     * @param expected state the file must have in the transaction, null to delete it unconditionally
+     * @throws ResourceNotFoundException   if the file does not exist
+     * @throws PreconditionFailedException if the file changed
+     */
+    public void delete(String filePath, int rootDir, ResourceStateDTO expected) {
         var data = resolveFile(filePath, rootDir);
         if (data.id() == 0) throw new ResourceNotFoundException("File " + filePath + " does not exist");
-        Path inputFile = computeFilePath(data.id());
-        try {
-            if (Files.exists(inputFile)) Files.delete(inputFile);
-        } catch (IOException ex) {
-            throw new StorageException("Error deleting file", ex);
-        }
-        String sql = "DELETE FROM files WHERE id = ?";
-        dataService.update(sql, data.id());
+        DataService db = shardService.forRoot(rootDir);
+        var deleted = db.inTransaction(() -> {
+            //the row is read again in the transaction, a publish may have replaced its blob since it was resolved
+            String sql = "SELECT id, blob_id, version FROM files WHERE id = ?";
+            var current = db.queryOne(sql, rs -> new FileRow(rs.getInt(1), rs.getInt(2), false, Utils.fileETag(rs.getInt(1), rs.getLong(3))), data.id())
+                    .orElseThrow(() -> new ResourceNotFoundException("File " + filePath + " does not exist"));
+            if (expected != null) checkExpected(filePath, current.etag(), expected);
+            db.update("DELETE FROM files WHERE id = ?", current.id());
+            recordChange(db, rootDir, data.directoryId(), filePath, false, true);
+            return new FileRow(current.id(), current.blobId(), releaseBlob(db, current.blobId()), current.etag());
+        });
+        if (deleted.unreferenced()) deleteBlobFile(db, deleted.blobId());
     }
 
     /**
@@ -200,32 +281,38 @@ public class StorageService {
      */
     public int deleteDirectory(String path, boolean deleteWithContents, int rootDir) {
         if ("/".equals(path)) throw new StorageException("Cannot delete root directory");
-        int dirId = resolveDir(path, rootDir, true).id();
-        //validates if the directory is empty
-        if (!deleteWithContents) {
-            String sql = "SELECT COUNT(1) FROM directories, files WHERE directories.parent = ? OR ( files.directory_id = ? AND files.directory_id = directories.id )";
-            int count = dataService.queryOne(sql, rs -> rs.getInt(1), dirId, dirId).orElse(0);
-            if (count > 0) throw new StorageException("Directory is not empty");
-        }
-        int deletedFiles = 0;
-        //delete directories
-        String sql1 = "SELECT name FROM directories WHERE parent = ?";
-        List<String> dirs = dataService.queryList(sql1, rs -> rs.getString(1), dirId);
-        for (String dir : dirs) {
-            deletedFiles += deleteDirectory(path + "/" + dir, true, rootDir);
-        }
-        //delete files
-        String sql2 = "SELECT name FROM files WHERE directory_id = ?";
-        List<String> files = dataService.queryList(sql2, rs -> rs.getString(1), dirId);
-        for (String file : files) {
-            delete(path + "/" + file, rootDir);
-            deletedFiles++;
-        }
-        //delete directory
-        String sql3 = "DELETE FROM directories WHERE id = ?";
-        dataService.update(sql3, dirId);
-        //return
-        return deletedFiles;
+        var dirData = resolveDir(path, rootDir, true);
+        int dirId = dirData.id();
+        DataService db = shardService.forRoot(rootDir);
+        //the whole tree is deleted in one transaction, encrypted files are deleted after the commit
+        var deleted = db.inTransaction(() -> {
+            //validates if the directory is empty
+            if (!deleteWithContents) {
+                String sql = "SELECT (SELECT COUNT(1) FROM directories WHERE parent = ?) + (SELECT COUNT(1) FROM files WHERE directory_id = ?)";
+                int count = db.queryOne(sql, rs -> rs.getInt(1), dirId, dirId).orElse(0);
+                if (count > 0) throw new StorageException("Directory is not empty");
+            }
+            String tree = "WITH RECURSIVE tree(id) AS (SELECT ? UNION ALL SELECT d.id FROM directories d JOIN tree ON d.parent = tree.id) ";
+            String sql1 = tree + "SELECT COUNT(1) FROM files WHERE directory_id IN tree";
+            int files = db.queryOne(sql1, rs -> rs.getInt(1), dirId).orElse(0);
+            //releases the blobs of the files, a blob can be referenced by several files of the tree
+            String sql2 = tree + "UPDATE blobs SET refs = refs - (SELECT COUNT(1) FROM files WHERE files.blob_id = blobs.id AND files.directory_id IN tree) WHERE id IN (SELECT blob_id FROM files WHERE directory_id IN tree)";
+            db.update(sql2, dirId);
+            String sql3 = tree + "SELECT DISTINCT blobs.id FROM blobs JOIN files ON files.blob_id = blobs.id WHERE files.directory_id IN tree AND blobs.refs <= 0";
+            List<Integer> blobs = db.queryList(sql3, rs -> rs.getInt(1), dirId);
+            String sql4 = tree + "DELETE FROM blobs WHERE refs <= 0 AND id IN (SELECT blob_id FROM files WHERE directory_id IN tree)";
+            db.update(sql4, dirId);
+            //deletes files and directories
+            db.update(tree + "DELETE FROM files WHERE directory_id IN tree", dirId);
+            db.update(tree + "DELETE FROM directories WHERE id IN tree", dirId);
+            //clients drop the members of a removed collection, so only the directory is recorded
+            recordChange(db, rootDir, dirData.parentId(), path, true, true);
+            return new DeletedTree(files, blobs);
+        });
+        directoryTree.invalidate(rootDir, path);
+        deleted.blobs().forEach(blobId -> deleteBlobFile(db, blobId));
+        log.info("Deleted directory {} with {} files", path, deleted.files());
+        return deleted.files();
     }
 
     /**
@@ -242,7 +329,12 @@ public class StorageService {
         if (destData.id() != 0) throw new StorageException("File " + dest + " already exists");
         //update sql
         String sql = "UPDATE files SET directory_id = ?, name = ? WHERE id = ?";
-        dataService.update(sql, destData.directoryId(), destData.name(), srcData.id());
+        DataService db = shardService.forRoot(rootDir);
+        db.inTransaction(() -> {
+            db.update(sql, destData.directoryId(), destData.name(), srcData.id());
+            recordChange(db, rootDir, srcData.directoryId(), src, false, true);
+            recordChange(db, rootDir, destData.directoryId(), dest, false, false);
+        });
     }
 
     /**
@@ -258,7 +350,22 @@ public class StorageService {
         if (destData.id() != 0) throw new StorageException("Directory " + dest + " already exists");
         //update sql
         String sql = "UPDATE directories SET parent = ?, name = ? WHERE id = ?";
-        dataService.update(sql, destData.parentId(), destData.name(), srcData.id());
+        DataService db = shardService.forRoot(rootDir);
+        db.inTransaction(() -> {
+            db.update(sql, destData.parentId(), destData.name(), srcData.id());
+            recordChange(db, rootDir, srcData.parentId(), srcData.path(), true, true);
+            recordChange(db, rootDir, destData.parentId(), destData.path(), true, false);
+            //every member is new at the destination
+            String sql2 = """
+                    WITH RECURSIVE tree(id, path) AS (SELECT ?, ? UNION ALL SELECT d.id, tree.path || '/' || d.name FROM directories d JOIN tree ON d.parent = tree.id)
+                    INSERT INTO changes (root, path, directory, deleted, created_at)
+                    SELECT ?, path, 1, 0, ? FROM tree WHERE id != ?
+                    UNION ALL
+                    SELECT ?, tree.path || '/' || f.name, 0, 0, ? FROM tree JOIN files f ON f.directory_id = tree.id""";
+            long now = Instant.now().toEpochMilli();
+            db.update(sql2, srcData.id(), destData.path(), rootDir, now, srcData.id(), rootDir, now);
+        });
+        directoryTree.invalidate(rootDir, src);
     }
 
     public void copyFile(String src, String dest, SessionDTO session) {
@@ -266,67 +373,77 @@ public class StorageService {
         if (srcData.id() == 0) throw new ResourceNotFoundException("File " + src + " does not exist");
         var destData = resolveFile(dest, session.rootDir());
         if (destData.id() != 0) throw new StorageException("File " + dest + " already exists");
-        //insert
+        DataService db = shardService.forRoot(session.rootDir());
         long now = Instant.now().toEpochMilli();
-        String sql = "INSERT INTO files (name, mime, size, directory_id, created_at, last_modified) VALUES (?, ?, 0, ?, ?, 0)";
-        int idFile = dataService.insertAutoincrement(sql, destData.name(), srcData.mime(), destData.directoryId(), now);
-        log.info("Storing copy file {} id={}", dest, idFile);
-        Path fileDestPath = computeFilePath(idFile);
-        Path parent = fileDestPath.getParent();
-        //parent directory must exist
-        if (!Files.exists(parent)) {
-            try {
-                Files.createDirectories(parent);
-            } catch (IOException ex) {
-                throw new StorageException("Error creating directories", ex);
+        String sql = "INSERT INTO files (name, mime, size, directory_id, created_at, last_modified, blob_id) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        //same key, the copy shares the blob
+        boolean sameKey = src.startsWith("/webdav/") == dest.startsWith("/webdav/");
+        if (sameKey) {
+            Integer idFile = db.inTransaction(() -> {
+                if (!retainBlob(db, srcData.blobId())) return null;
+                recordChange(db, session.rootDir(), destData.directoryId(), dest, false, false);
+                return db.insertAutoincrement(sql, destData.name(), srcData.mime(), srcData.size(), destData.directoryId(), now, now, srcData.blobId());
+            });
+            if (idFile != null) {
+                log.info("Stored copy file {} id={} sharing blob={}", dest, idFile, srcData.blobId());
+                return;
             }
         }
-        //copy the file
-        Path fileSrcPath = computeFilePath(srcData.id());
-        if ((src.startsWith("/webdav/") && dest.startsWith("/webdav/")) || (!src.startsWith("/webdav/") && !dest.startsWith("/webdav/"))) {
-            try {
-                Files.copy(fileSrcPath, fileDestPath);
-            } catch (IOException ex) {
-                throw new StorageException("Error copying file", ex);
-            }
-        } else {
-            SecretKey decodeKey = session.key();
-            SecretKey encodeKey = session.key();
-            if (src.startsWith("/webdav/")) decodeKey = session.webdavKey();
-            if (dest.startsWith("/webdav/")) encodeKey = session.webdavKey();
-            try (var inputStream = Files.newInputStream(fileSrcPath)) {
-                var tempPath = tasksService.getTempFile();
-                CryptHelper.decrypt(inputStream, tempPath, decodeKey);
-                try (var decodedStream = Files.newInputStream(tempPath)) {
-                    CryptHelper.encrypt(decodedStream, fileDestPath, encodeKey);
+        //otherwise the content is copied, or re-encrypted with the other key, in a staging file and published like a
+        //stored file, so a failed copy leaves no blob behind and the destination must still be missing when published
+        Path fileSrcPath = computeFilePath(db, srcData.blobId());
+        log.info("Storing copy file {}", dest);
+        try (var staging = stagingService.create(db.getDataPath(), srcData.size())) {
+            if (sameKey) {
+                Files.copy(fileSrcPath, staging.path(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                SecretKey decodeKey = session.key();
+                SecretKey encodeKey = session.key();
+                if (src.startsWith("/webdav/")) decodeKey = session.webdavKey();
+                if (dest.startsWith("/webdav/")) encodeKey = session.webdavKey();
+                try (var input = CryptHelper.decryptingStream(fileSrcPath, decodeKey)) {
+                    CryptHelper.encrypt(staging.track(input), staging.path(), encodeKey);
                 }
-            } catch (IOException ex) {
-                throw new StorageException("Error copying file", ex);
             }
+            publish(dest, srcData.mime(), srcData.size(), staging.path(), session.rootDir(), new ResourceStateDTO(null, 0));
+        } catch (IOException ex) {
+            throw new StorageException("Error copying file", ex);
         }
-        //update the file size
-        String sql2 = "UPDATE files SET size = ?, last_modified = ? WHERE id = ?";
-        int updated = dataService.update(sql2, srcData.size(), now, idFile);
-        if (updated != 1) throw new StorageException("Error updating file size id=" + idFile + " updated=" + updated);
     }
 
     public void copyDirectory(String src, String dest, SessionDTO session) {
+        //with the same key only metadata is copied, so the whole tree is copied in one transaction
+        boolean sameKey = src.startsWith("/webdav/") == dest.startsWith("/webdav/");
+        DataService db = shardService.forRoot(session.rootDir());
+        try {
+            if (sameKey) db.inTransaction(() -> copyDirectoryTree(src, dest, session));
+            else copyDirectoryTree(src, dest, session);
+        } finally {
+            directoryTree.invalidate(session.rootDir(), dest);
+        }
+    }
+
+    private void copyDirectoryTree(String src, String dest, SessionDTO session) {
         var srcData = resolveDir(src, session.rootDir(), true);
         var destData = resolveDir(dest, session.rootDir(), false);
         if (destData.id() != 0) throw new StorageException("Directory " + dest + " already exists");
+        DataService db = shardService.forRoot(session.rootDir());
         //insert
         long now = Instant.now().toEpochMilli();
         String sql = "INSERT INTO directories (name, parent, created_at, last_modified) VALUES (?, ?, ?, ?)";
-        dataService.insertAutoincrement(sql, destData.name(), destData.parentId(), now, now);
+        db.inTransaction(() -> {
+            recordChange(db, session.rootDir(), destData.parentId(), destData.path(), true, false);
+            return db.insertAutoincrement(sql, destData.name(), destData.parentId(), now, now);
+        });
         log.info("Copying directory {} to {}", src, dest);
         //copy the directory
         String sql2 = "SELECT name FROM directories WHERE parent = ?";
-        List<String> dirs = dataService.queryList(sql2, rs -> rs.getString(1), srcData.id());
+        List<String> dirs = db.queryList(sql2, rs -> rs.getString(1), srcData.id());
         for (String dir : dirs) {
-            copyDirectory(src + "/" + dir, dest + "/" + dir, session);
+            copyDirectoryTree(src + "/" + dir, dest + "/" + dir, session);
         }
         String sql3 = "SELECT name FROM files WHERE directory_id = ?";
-        List<String> files = dataService.queryList(sql3, rs -> rs.getString(1), srcData.id());
+        List<String> files = db.queryList(sql3, rs -> rs.getString(1), srcData.id());
         for (String file : files) {
             copyFile(src + "/" + file, dest + "/" + file, session);
         }
@@ -341,33 +458,20 @@ public class StorageService {
      * @throws ResourceNotFoundException if the path does not exist
      */
     protected DirDataDTO resolveDir(String path, int rootDir, boolean mustExists) {
-        //root directory
-        String sql = "SELECT created_at, last_modified FROM directories WHERE id = ?";
-        var dirData = dataService.queryOne(sql, rs -> {
-            long createdAt = rs.getLong(1);
-            long lastModified = rs.getLong(2);
-            return new DirDataDTO(rootDir, "/", "/", createdAt, lastModified, 0);
-        }, rootDir).orElseThrow(() -> new ResourceNotFoundException("Root directory not found"));
-        if ("/".equals(path)) return dirData;
-        //validation
-        if (!path.startsWith("/")) throw new ResourceNotFoundException("Path must start with /");
-        if (path.endsWith("/")) throw new ResourceNotFoundException("Directory name must not end with /");
-        //starts resolving
-        String[] paths = path.substring(1).split("/");
-        StringBuilder resolvedPath = new StringBuilder();
-        for (String name : paths) {
-            if ("".equals(name)) throw new ResourceNotFoundException("Invalid path");
-            resolvedPath.append("/").append(name);
-            String sql2 = "SELECT id, created_at, last_modified FROM directories WHERE name = ? AND parent = ?";
-            int lastDir = dirData.id();
-            dirData = dataService.queryOne(sql2, rs -> {
-                int id = rs.getInt(1);
-                long createdAt = rs.getLong(2);
-                long lastModified = rs.getLong(3);
-                return new DirDataDTO(id, name, resolvedPath.toString(), createdAt, lastModified, lastDir);
-            }, name, lastDir).orElse(new DirDataDTO(0, name, resolvedPath.toString(), 0, 0, lastDir));
-            if (dirData.id() == 0) break;
+        String[] names = new String[0];
+        if (!"/".equals(path)) {
+            //validation
+            if (!path.startsWith("/")) throw new ResourceNotFoundException("Path must start with /");
+            if (path.endsWith("/")) throw new ResourceNotFoundException("Directory name must not end with /");
+            names = path.substring(1).split("/");
+            for (String name : names) {
+                if ("".equals(name)) throw new ResourceNotFoundException("Invalid path");
+            }
         }
+        //transactions read their own uncommitted directories, which must not be cached
+        DataService db = shardService.forRoot(rootDir);
+        boolean useCache = !db.isWriterThread();
+        var dirData = directoryTree.resolve(rootDir, names, id -> loadRootDir(db, id), (parent, name) -> loadDir(db, parent, name), useCache);
         if (!dirData.path().equals(path)) {
             throw new ResourceNotFoundException("Some parent of " + path + " does not exist");
         }
@@ -377,6 +481,25 @@ public class StorageService {
         return dirData;
     }
 
+    private DirDataDTO loadRootDir(DataService db, int rootDir) {
+        String sql = "SELECT created_at, last_modified FROM directories WHERE id = ?";
+        return db.selectOne(sql, rs -> new DirDataDTO(rootDir, "/", "/", rs.getLong(1), rs.getLong(2), 0), rootDir)
+                .orElseThrow(() -> new ResourceNotFoundException("Root directory not found"));
+    }
+
+    /**
+     * Loads a directory by its parent and name
+     *
+     * @return the directory, with id 0 if it does not exist
+     */
+    private DirDataDTO loadDir(DataService db, DirDataDTO parent, String name) {
+        String sql = "SELECT id, created_at, last_modified FROM directories WHERE name = ? AND parent = ?";
+        String dirPath = "/".equals(parent.path()) ? "/" + name : parent.path() + "/" + name;
+        int parentId = parent.id();
+        return db.selectOne(sql, rs -> new DirDataDTO(rs.getInt(1), name, dirPath, rs.getLong(2), rs.getLong(3), parentId), name, parentId)
+                .orElse(new DirDataDTO(0, name, dirPath, 0, 0, parentId));
+    }
+
     /**
      * Resolves the file id from the path
      *
@@ -393,31 +516,153 @@ public class StorageService {
         if (dirPath.isBlank()) dirPath = "/";
         String fileName = path.substring(slashIndex + 1);
         var dirData = resolveDir(dirPath, rootDir, true);
-        String sql = "SELECT id, name, mime, size, created_at, last_modified FROM files WHERE name = ? AND directory_id = ?";
-        var fileData = dataService.queryOne(sql, rs -> {
-            int id = rs.getInt(1);
+        String sql = "SELECT id, name, mime, size, created_at, last_modified, blob_id, version FROM files WHERE name = ? AND directory_id = ?";
+        var fileData = shardService.forRoot(rootDir).selectOne(sql, rs -> {
             String name = rs.getString(2);
-            String mime = rs.getString(3);
-            long size = rs.getLong(4);
-            long createdAt = rs.getLong(5);
-            long lastModified = rs.getLong(6);
-            return new FileDataDTO(id, name, dirData.path() + "/" + name, mime, size, createdAt, lastModified, dirData.id());
+            return new FileDataDTO(rs.getInt(1), name, dirData.path() + "/" + name, rs.getString(3), rs.getLong(4), rs.getLong(5), rs.getLong(6), dirData.id(), rs.getInt(7), rs.getLong(8));
         }, fileName, dirData.id());
-        return fileData.orElseGet(() -> new FileDataDTO(0, fileName, dirData.path() + "/" + fileName, "", 0, 0, 0, dirData.id()));
+        return fileData.orElseGet(() -> new FileDataDTO(0, fileName, dirData.path() + "/" + fileName, "", 0, 0, 0, dirData.id(), 0, 0));
+    }
+
+    /**
+     * Adds a row to the log read by sync-collection reports and sets its id as the change tag of every
+     * ancestor, in the transaction of the change. Only the parent gets a new modification time, its listing
+     * is the one that changed.
+     *
+     * @param db        database of the user
+     * @param rootDir   user root directory
+     * @param parentId  directory holding the resource
+     * @param path      path of the resource, directories without the trailing slash
+     * @param directory true if the resource is a directory
+     * @param deleted   true if the resource no longer exists at the path
+     */
+    private void recordChange(DataService db, int rootDir, int parentId, String path, boolean directory, boolean deleted) {
+        long now = Instant.now().toEpochMilli();
+        String sql = "INSERT INTO changes (root, path, directory, deleted, created_at) VALUES (?, ?, ?, ?, ?)";
+        int changeId = db.insertAutoincrement(sql, rootDir, path, directory ? 1 : 0, deleted ? 1 : 0, now);
+        String sql2 = "WITH RECURSIVE ancestors(id) AS (SELECT ? UNION ALL SELECT d.parent FROM directories d JOIN ancestors ON d.id = ancestors.id WHERE d.parent IS NOT NULL) "
+                + "UPDATE directories SET ctag = ?, last_modified = CASE WHEN id = ? THEN ? ELSE last_modified END WHERE id IN ancestors";
+        db.update(sql2, parentId, changeId, parentId, now);
+    }
+
+    /**
+     * Creates a blob referenced by one file
+     *
+     * @param db database of the user
+     * @return the blob id
+     */
+    private int createBlob(DataService db) {
+        String sql = "INSERT INTO blobs (refs, created_at) VALUES (1, ?)";
+        return db.insertAutoincrement(sql, Instant.now().toEpochMilli());
+    }
+
+    /**
+     * Adds a reference to a blob
+     *
+     * @param db     database of the blob
+     * @param blobId the blob id
+     * @return false if the blob is being deleted and cannot be shared
+     */
+    private boolean retainBlob(DataService db, int blobId) {
+        String sql = "UPDATE blobs SET refs = refs + 1 WHERE id = ? AND refs > 0";
+        return db.update(sql, blobId) == 1;
+    }
+
+    /**
+     * Compares the state of a file read in a transaction with the state its preconditions were evaluated against
+     *
+     * @param path     file path
+     * @param etag     current ETag, null if the file does not exist
+     * @param expected expected state, null if the change is unconditional
+     * @throws PreconditionFailedException if the file changed, rolling back the transaction
+     */
+    private static void checkExpected(String path, String etag, ResourceStateDTO expected) {
+        if (expected != null && !Objects.equals(etag, expected.etag())) {
+            throw new PreconditionFailedException("File " + path + " changed after its preconditions were evaluated");
+        }
     }
 
     /**
-     * Directory and filename of encrypted file depends on the fileId
+     * Removes a reference to a blob, deleting its row when no file references it. The encrypted file must be
+     * deleted with {@link #deleteBlobFile(DataService, int)} once the transaction is committed.
      *
-     * @param fileId the file id
+     * @param db     database of the blob
+     * @param blobId the blob id
+     * @return true if the blob is no longer referenced
+     */
+    private boolean releaseBlob(DataService db, int blobId) {
+        db.update("UPDATE blobs SET refs = refs - 1 WHERE id = ?", blobId);
+        return db.update("DELETE FROM blobs WHERE id = ? AND refs <= 0", blobId) == 1;
+    }
+
+    /**
+     * Deletes the encrypted file of a blob no longer referenced
+     *
+     * @param db     database of the blob
+     * @param blobId the blob id
+     */
+    private void deleteBlobFile(DataService db, int blobId) {
+        try {
+            Files.deleteIfExists(computeFilePath(db, blobId));
+        } catch (IOException ex) {
+            throw new StorageException("Error deleting file", ex);
+        }
+    }
+
+    /**
+     * Path of the encrypted file of a blob, creating its parent directory if needed
+     *
+     * @param db     database of the blob
+     * @param blobId the blob id
      * @return path of encrypted file
      */
-    private Path computeFilePath(int fileId) {
-        StringBuilder fileName = new StringBuilder(Integer.toHexString(fileId % 1000));
+    private Path prepareBlobPath(DataService db, int blobId) {
+        Path path = computeFilePath(db, blobId);
+        try {
+            Files.createDirectories(path.getParent());
+        } catch (IOException ex) {
+            throw new StorageException("Error creating directories", ex);
+        }
+        return path;
+    }
+
+    private Path computeFilePath(DataService db, int blobId) {
+        return blobPath(db.getDataPath(), blobId);
+    }
+
+    /**
+     * Directory and filename of encrypted file depends on the blobId
+     *
+     * @param dataPath directory of the database of the blob
+     * @param blobId   the blob id
+     * @return path of encrypted file
+     */
+    static Path blobPath(Path dataPath, int blobId) {
+        StringBuilder fileName = new StringBuilder(Integer.toHexString(blobId % 1000));
         while (fileName.length() < 3) {
             fileName.insert(0, "0");
         }
-        return config.getDataPath().resolve(Integer.toHexString(fileId / 1000 + 160)).resolve(fileName.toString());
+        return dataPath.resolve(Integer.toHexString(blobId / 1000 + 160)).resolve(fileName.toString());
+    }
+
+    /**
+     * Files and blobs removed with a directory tree
+     *
+     * @param files number of files deleted
+     * @param blobs blobs no longer referenced
+     */
+    private record DeletedTree(int files, List<Integer> blobs) {
+    }
+
+    /**
+     * Row of a file read in the transaction that replaces or deletes its blob
+     *
+     * @param id           file id
+     * @param blobId       blob of the file when it was read
+     * @param unreferenced true if that blob is no longer referenced
+     * @param etag         ETag of the file before the change
+     */
+    private record FileRow(int id, int blobId, boolean unreferenced, String etag) {
     }
 
 }
@@ -2,12 +2,8 @@ package net.vjdv.filecalli.services;
 
 import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
-import net.vjdv.filecalli.util.Configuration;
 import org.springframework.stereotype.Service;
 
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -20,28 +16,21 @@ import java.util.concurrent.TimeUnit;
 public class TasksService {
 
     private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-    private final Configuration config;
 
-    public TasksService(DataService dataService, Configuration configuration) {
-        this.config = configuration;
-        executor.scheduleWithFixedDelay(dataService::updateEncryptedDb, 5, 5, TimeUnit.MINUTES);
-    }
-
-    /**
-     * Creates a temporary file and schedules its deletion
-     */
-    public Path getTempFile() throws IOException {
-        var file = Files.createTempFile(config.getTempPath(), "fc", ".tmp");
-        executor.schedule(() -> {
-            try {
-                if (Files.exists(file) && Files.isRegularFile(file)) {
-                    Files.delete(file);
-                }
-            } catch (IOException ex) {
-                log.warn("Error al borrar archivo temporal", ex);
-            }
-        }, 10, TimeUnit.MINUTES);
-        return file;
+    public TasksService(ShardService shardService, SessionService sessionService, UploadService uploadService, StagingService stagingService) {
+        executor.scheduleWithFixedDelay(shardService::checkpoint, 1, 1, TimeUnit.MINUTES);
+        executor.scheduleWithFixedDelay(uploadService::expireUploads, 1, 60, TimeUnit.MINUTES);
+        executor.scheduleWithFixedDelay(sessionService::expireSessions, 1, 1, TimeUnit.SECONDS);
+        executor.scheduleWithFixedDelay(() -> {
+            var stats = shardService.statementStats();
+            log.info("Statement cache hits={} misses={} evictions={}", stats.hits(), stats.misses(), stats.evictions());
+            var web = sessionService.sessionStats();
+            log.info("Web sessions size={} hits={} misses={} evictions={} expirations={}", web.size(), web.hits(), web.misses(), web.evictions(), web.expirations());
+            var webdav = sessionService.webdavSessionStats();
+            log.info("Webdav sessions size={} hits={} misses={} evictions={} expirations={}", webdav.size(), webdav.hits(), webdav.misses(), webdav.evictions(), webdav.expirations());
+            var staging = stagingService.stats();
+            log.info("Staging used={} peak={} quota={} files={} waits={} rejections={}", staging.used(), staging.peak(), staging.quota(), staging.files(), staging.waits(), staging.rejections());
+        }, 1, 1, TimeUnit.HOURS);
     }
 
     @PreDestroy
@@ -0,0 +1,194 @@
+package net.vjdv.filecalli.services;
+
+import lombok.extern.slf4j.Slf4j;
+import net.vjdv.filecalli.dto.ContentRangeDTO;
+import net.vjdv.filecalli.dto.ResourceStateDTO;
+import net.vjdv.filecalli.dto.SessionDTO;
+import net.vjdv.filecalli.dto.UploadStatusDTO;
+import net.vjdv.filecalli.enums.UploadState;
+import net.vjdv.filecalli.exceptions.PreconditionFailedException;
+import net.vjdv.filecalli.exceptions.StorageException;
+import net.vjdv.filecalli.util.Configuration;
+import net.vjdv.filecalli.util.CryptHelper;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Uploads received in several requests with Content-Range, so a client that loses its connection continues
+ * where the server stopped instead of starting again. Each upload has a row in the database of the user and
+ * a staging file in its data directory, where the data is encrypted as it arrives; the file is published when
+ * its last byte arrives.
+ * <p>
+ * Only whole segments of the encrypted format are kept, so the server may keep fewer bytes than the client
+ * sent and tells the client where to continue. Bytes already kept are never encrypted again.
+ * <p>
+ * Each range reserves staging space while it is written; the bytes kept between ranges are bounded by the expiry.
+ */
+@Slf4j
+@Service
+public class UploadService {
+
+    private final ShardService shardService;
+    private final StorageService storageService;
+    private final StagingService stagingService;
+    private final long expiryMillis;
+    private final Set<String> active = ConcurrentHashMap.newKeySet();
+
+    public UploadService(ShardService shardService, StorageService storageService, StagingService stagingService, Configuration configuration) {
+        this.shardService = shardService;
+        this.storageService = storageService;
+        this.stagingService = stagingService;
+        this.expiryMillis = configuration.getUploadExpiry() * 1000;
+    }
+
+    /**
+     * Appends a range to the upload of a path, a range starting at 0 starts the upload again
+     *
+     * @param path     file path
+     * @param mime     mime type of the file
+     * @param range    range of the body, a range without start only asks the state of the upload
+     * @param input    body of the request
+     * @param session  user session
+     * @param expected state the path must have when the completed upload is published, null if unconditional
+     * @return state of the upload and the bytes kept
+     * @throws PreconditionFailedException if the path changed when the upload completed, the upload is discarded
+     */
+    public UploadStatusDTO put(String path, String mime, ContentRangeDTO range, InputStream input, SessionDTO session, ResourceStateDTO expected) {
+        String key = session.rootDir() + ":" + path;
+        if (!active.add(key)) return new UploadStatusDTO(UploadState.BUSY, 0);
+        try {
+            return append(path, mime, range, input, session, expected);
+        } finally {
+            active.remove(key);
+        }
+    }
+
+    private UploadStatusDTO append(String path, String mime, ContentRangeDTO range, InputStream input, SessionDTO session, ResourceStateDTO expected) {
+        int rootDir = session.rootDir();
+        DataService db = shardService.forRoot(rootDir);
+        String sql = "SELECT id, total, received FROM uploads WHERE root = ? AND path = ?";
+        var upload = db.queryOne(sql, rs -> new Upload(rs.getInt(1), rs.getLong(2), rs.getLong(3)), rootDir, path).orElse(null);
+        SecretKey key = path.startsWith("/webdav/") ? session.webdavKey() : session.key();
+        long received = upload == null ? 0 : received(db, upload, key);
+        if (range.start() == -1) return new UploadStatusDTO(UploadState.INCOMPLETE, received);
+        if (range.start() != 0 && range.start() != received) return new UploadStatusDTO(UploadState.MISMATCH, received);
+        //a continued upload keeps its size, an unknown size may become known
+        if (range.start() != 0 && upload != null && upload.total() != -1 && range.total() != upload.total()) {
+            return new UploadStatusDTO(UploadState.MISMATCH, received);
+        }
+        //validates the parent directory before receiving anything
+        storageService.resolveFile(path, rootDir);
+        long now = Instant.now().toEpochMilli();
+        int uploadId;
+        if (upload == null) {
+            String sql2 = "INSERT INTO uploads (root, path, mime, total, received, created_at, updated_at) VALUES (?, ?, ?, ?, 0, ?, ?)";
+            uploadId = db.insertAutoincrement(sql2, rootDir, path, mime, range.total(), now, now);
+        } else {
+            uploadId = upload.id();
+        }
+        long start = range.start();
+        Path staging = stagingPath(db, uploadId);
+        long written;
+        //the range takes staging space while it is written, like the body of a stored file
+        try (var space = stagingService.reserve(range.length())) {
+            Files.createDirectories(staging.getParent());
+            written = CryptHelper.appendEncrypted(space.track(input), staging, key, start / CryptHelper.SEGMENT_SIZE, range.length(), range.total());
+        } catch (IOException ex) {
+            throw new StorageException("Error storing upload " + path, ex);
+        }
+        long kept = start + written;
+        if (kept == range.total()) {
+            try {
+                storageService.publish(path, mime, kept, staging, rootDir, expected);
+            } catch (PreconditionFailedException ex) {
+                db.update("DELETE FROM uploads WHERE id = ?", uploadId);
+                throw ex;
+            }
+            db.update("DELETE FROM uploads WHERE id = ?", uploadId);
+            log.info("Upload of {} completed with {} bytes", path, kept);
+            return new UploadStatusDTO(UploadState.COMPLETE, kept);
+        }
+        //a body cut before its end leaves an incomplete segment that is not kept, so kept is a whole segment
+        String sql3 = "UPDATE uploads SET mime = ?, total = ?, received = ?, updated_at = ? WHERE id = ?";
+        db.update(sql3, mime, range.total(), kept, now, uploadId);
+        return new UploadStatusDTO(UploadState.INCOMPLETE, kept);
+    }
+
+    /**
+     * Removes the uploads not continued within the expiry time, with their staging files
+     */
+    public void expireUploads() {
+        long limit = Instant.now().toEpochMilli() - expiryMillis;
+        for (DataService db : shardService.databases()) {
+            String sql = "SELECT id, root, path FROM uploads WHERE updated_at < ?";
+            List<Expired> expired = db.queryList(sql, rs -> new Expired(rs.getInt(1), rs.getInt(2) + ":" + rs.getString(3)), limit);
+            int removed = 0;
+            for (Expired upload : expired) {
+                //the path is claimed like a request does, so no range is appended while the upload is removed
+                if (!active.add(upload.key())) continue;
+                try {
+                    //a range appended after the query renewed the upload
+                    if (db.update("DELETE FROM uploads WHERE id = ? AND updated_at < ?", upload.id(), limit) == 0) continue;
+                    Files.deleteIfExists(stagingPath(db, upload.id()));
+                    removed++;
+                } catch (IOException ex) {
+                    log.warn("Error deleting staging file of upload {}", upload.id(), ex);
+                } finally {
+                    active.remove(upload.key());
+                }
+            }
+            if (removed > 0) log.info("Expired {} uploads", removed);
+        }
+    }
+
+    /**
+     * Plain bytes kept by an upload. The staging file may hold segments written after the last ones recorded if
+     * the process stopped before recording them, they are kept; a file that cannot be continued is started again.
+     *
+     * @return bytes kept, a whole number of segments
+     */
+    private long received(DataService db, Upload upload, SecretKey key) {
+        Path staging = stagingPath(db, upload.id());
+        //the staging file is gone if the process stopped while publishing it
+        if (!Files.exists(staging)) return 0;
+        try {
+            long segments = CryptHelper.appendableSegments(staging, key, upload.received() / CryptHelper.SEGMENT_SIZE);
+            return Math.max(segments, 0) * CryptHelper.SEGMENT_SIZE;
+        } catch (IOException ex) {
+            throw new StorageException("Error reading upload " + upload.id(), ex);
+        }
+    }
+
+    private Path stagingPath(DataService db, int uploadId) {
+        return db.getDataPath().resolve("uploads").resolve(String.valueOf(uploadId));
+    }
+
+    /**
+     * Upload in progress
+     *
+     * @param id       upload id
+     * @param total    size of the file, -1 if unknown
+     * @param received plain bytes kept
+     */
+    private record Upload(int id, long total, long received) {
+    }
+
+    /**
+     * Upload to remove
+     *
+     * @param id  upload id
+     * @param key root directory and path
+     */
+    private record Expired(int id, String key) {
+    }
+
+}
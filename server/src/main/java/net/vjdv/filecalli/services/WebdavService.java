@@ -1,77 +1,312 @@
 package net.vjdv.filecalli.services;
 
 import lombok.extern.slf4j.Slf4j;
+import net.vjdv.filecalli.dto.ContentRangeDTO;
+import net.vjdv.filecalli.dto.DirDataDTO;
+import net.vjdv.filecalli.dto.FileDataDTO;
+import net.vjdv.filecalli.dto.ResultSetWrapper;
+import net.vjdv.filecalli.dto.ResourceStateDTO;
 import net.vjdv.filecalli.dto.RetrievedFileDTO;
+import net.vjdv.filecalli.dto.UploadStatusDTO;
 import net.vjdv.filecalli.dto.WebdavSessionDTO;
-import net.vjdv.filecalli.dto.webdav.Multistatus;
+import net.vjdv.filecalli.exceptions.DepthLimitException;
 import net.vjdv.filecalli.exceptions.ResourceNotFoundException;
 import net.vjdv.filecalli.exceptions.StorageException;
+import net.vjdv.filecalli.exceptions.SyncTokenException;
+import net.vjdv.filecalli.util.Configuration;
+import net.vjdv.filecalli.util.MultistatusWriter;
+import net.vjdv.filecalli.util.Utils;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
 
 @Slf4j
 @Service
 public class WebdavService {
 
-    private final DataService dataService;
+    /**
+     * Depth of a PROPFIND that includes the whole tree
+     */
+    public static final int DEPTH_INFINITY = -1;
+    private static final String SYNC_TOKEN_PREFIX = "urn:filecalli:sync:";
+    private static final String TREE = "WITH RECURSIVE tree(id, path) AS (SELECT ?, ? UNION ALL SELECT d.id, tree.path || '/' || d.name FROM directories d JOIN tree ON d.parent = tree.id) ";
+    /**
+     * Rows read with each query while a response is written, the reader is returned to the pool between pages
+     */
+    private static final int PAGE_SIZE = 500;
+
+    private final ShardService shardService;
     private final StorageService storageService;
+    private final UploadService uploadService;
+    private final int propfindLimit;
 
-    public WebdavService(DataService dataService, StorageService storageService) {
-        this.dataService = dataService;
+    public WebdavService(ShardService shardService, StorageService storageService, UploadService uploadService, Configuration configuration) {
+        this.shardService = shardService;
         this.storageService = storageService;
+        this.uploadService = uploadService;
+        this.propfindLimit = configuration.getPropfindLimit();
+    }
+
+    /**
+     * Resolves the resource of a PROPFIND, the response is written later while the rows are read page by page
+     *
+     * @param path    requested path, directories end with /
+     * @param rootDir user root directory
+     * @param depth   0 for the resource, 1 to include the children of a directory, or {@link #DEPTH_INFINITY}
+     * @return writer of the multistatus response
+     * @throws ResourceNotFoundException if the resource does not exist
+     * @throws DepthLimitException       if the tree has more resources than allowed for Depth infinity
+     */
+    public StreamingResponseBody propfind(String path, int rootDir, int depth) {
+        return path.endsWith("/") ? propfindDir(path, rootDir, depth) : propfindFile(path, rootDir);
     }
 
-    public Multistatus propfind(String path, int rootDir) {
-        return path.endsWith("/") ? propfindDir(path, rootDir) : propfindFile(path, rootDir);
+    private StreamingResponseBody propfindDir(String path, int rootDir, int depth) {
+        if (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+        var dirData = storageService.resolveDir(path, rootDir, true);
+        DataService db = shardService.forRoot(rootDir);
+        if (depth == DEPTH_INFINITY) checkTreeSize(db, dirData);
+        return output -> {
+            try (var writer = new MultistatusWriter(output)) {
+                writeDirectory(db, dirData, writer);
+                if (depth == 0) return;
+                if (depth == DEPTH_INFINITY) writeTree(db, dirData, writer);
+                else writeChildren(db, dirData, writer, subdir -> {
+                });
+            }
+        };
     }
 
-    private Multistatus propfindDir(String path, int rootDir) {
-        var builder = Multistatus.builder();
+    /**
+     * Resolves a sync-collection REPORT. Without a token every member is reported, otherwise only the paths
+     * changed since the token, read from the changes log with indexed queries of one page each.
+     *
+     * @param path      collection path
+     * @param rootDir   user root directory
+     * @param syncToken token of a previous report, null or empty for the initial sync
+     * @param infinite  true to report the whole tree, false for the members of the collection only
+     * @return writer of the multistatus response
+     * @throws ResourceNotFoundException if the collection does not exist
+     * @throws SyncTokenException        if the token was not issued by this server
+     * @throws DepthLimitException       if an initial sync of the tree has more resources than allowed
+     */
+    public StreamingResponseBody syncCollection(String path, int rootDir, String syncToken, boolean infinite) {
         if (path.endsWith("/")) path = path.substring(0, path.length() - 1);
         var dirData = storageService.resolveDir(path, rootDir, true);
-        // directories
-        String sql1 = "SELECT name, created_at, last_modified FROM directories WHERE parent = ?";
-        dataService.forEach(sql1, rs -> {
-            String name = rs.getString(1);
-            long createdAt = rs.getLong(2);
-            long lastModified = rs.getLong(3);
-            builder.directory(name, dirData.path() + "/" + name, createdAt, lastModified);
-        }, dirData.id());
-        // files
-        String sql2 = "SELECT name, size, mime, created_at, last_modified FROM files WHERE directory_id = ?";
-        dataService.forEach(sql2, rs -> {
-            String name = rs.getString("name");
-            String mime = rs.getString("mime");
-            long size = rs.getLong("size");
-            long createdAt = rs.getLong("created_at");
-            long lastModified = rs.getLong("last_modified");
-            builder.file(name, dirData.path() + "/" + name, mime, size, createdAt, lastModified);
-        }, dirData.id());
-        //return
-        return builder.build();
-    }
-
-    private Multistatus propfindFile(String path, int rootDir) {
+        DataService db = shardService.forRoot(rootDir);
+        long current = db.queryOne("SELECT COALESCE((SELECT seq FROM sqlite_sequence WHERE name = 'changes'), 0)", rs -> rs.getLong(1)).orElse(0L);
+        String newToken = SYNC_TOKEN_PREFIX + current;
+        if (syncToken == null || syncToken.isBlank()) {
+            if (infinite) checkTreeSize(db, dirData);
+            return output -> {
+                try (var writer = new MultistatusWriter(output)) {
+                    if (infinite) writeTree(db, dirData, writer);
+                    else writeChildren(db, dirData, writer, subdir -> {
+                    });
+                    writer.syncToken(newToken);
+                }
+            };
+        }
+        long since = parseSyncToken(syncToken.trim(), current);
+        String prefix = "/".equals(dirData.path()) ? "/" : dirData.path() + "/";
+        return output -> {
+            //the last change of each path tells if it exists, the current state is read after each page; a path
+            //whose last change is in a later page has no change in the earlier ones, so pages start after the
+            //last change of the previous page
+            String sql = "SELECT path, directory, deleted, MAX(id) FROM changes WHERE root = ? AND id > ? AND id <= ? AND substr(path, 1, ?) = ? GROUP BY path ORDER BY MAX(id) LIMIT ?";
+            try (var writer = new MultistatusWriter(output)) {
+                long after = since;
+                List<Change> changes;
+                do {
+                    changes = db.queryList(sql, rs -> new Change(rs.getString(1), rs.getInt(2) == 1, rs.getInt(3) == 1, rs.getLong(4)), rootDir, after, current, prefix.length(), prefix, PAGE_SIZE);
+                    for (Change change : changes) {
+                        if (!infinite && change.path().indexOf('/', prefix.length()) != -1) continue;
+                        if (change.deleted() || !writeResource(change, rootDir, writer)) {
+                            writer.deleted(change.path(), change.directory());
+                        }
+                    }
+                    if (!changes.isEmpty()) after = changes.get(changes.size() - 1).id();
+                } while (changes.size() == PAGE_SIZE);
+                writer.syncToken(newToken);
+            }
+        };
+    }
+
+    /**
+     * @return the number of the changes log in a sync token
+     * @throws SyncTokenException if the token is not a token of this database
+     */
+    private long parseSyncToken(String syncToken, long current) {
+        if (!syncToken.startsWith(SYNC_TOKEN_PREFIX)) throw new SyncTokenException("Unknown sync token " + syncToken);
+        try {
+            long since = Long.parseLong(syncToken.substring(SYNC_TOKEN_PREFIX.length()));
+            if (since < 0 || since > current) throw new SyncTokenException("Sync token " + syncToken + " was not issued");
+            return since;
+        } catch (NumberFormatException ex) {
+            throw new SyncTokenException("Invalid sync token " + syncToken);
+        }
+    }
+
+    /**
+     * Writes the current properties of a changed resource
+     *
+     * @return false if the resource no longer exists
+     */
+    private boolean writeResource(Change change, int rootDir, MultistatusWriter writer) {
+        try {
+            if (change.directory()) {
+                var dirData = storageService.resolveDir(change.path(), rootDir, false);
+                if (dirData.id() == 0) return false;
+                writeDirectory(shardService.forRoot(rootDir), dirData, writer);
+            } else {
+                var data = storageService.resolveFile(change.path(), rootDir);
+                if (data.id() == 0) return false;
+                writer.file(data.name(), change.path(), data.mime(), data.size(), data.createdAt(), data.lastModified(), data.etag());
+            }
+            return true;
+        } catch (ResourceNotFoundException ex) {
+            //some parent was removed later
+            return false;
+        }
+    }
+
+    /**
+     * @throws DepthLimitException if the tree has more resources than allowed for Depth infinity
+     */
+    private void checkTreeSize(DataService db, DirDataDTO dirData) {
+        String sql = TREE + "SELECT (SELECT COUNT(1) FROM tree) + (SELECT COUNT(1) FROM files WHERE directory_id IN (SELECT id FROM tree))";
+        int count = db.queryOne(sql, rs -> rs.getInt(1), dirData.id(), dirData.path()).orElse(0);
+        if (count > propfindLimit) {
+            throw new DepthLimitException(dirData.path() + " has " + count + " resources, more than the limit " + propfindLimit);
+        }
+    }
+
+    /**
+     * Writes a resolved directory, its times and change tag are read again since resolved directories are
+     * cached
+     */
+    private void writeDirectory(DataService db, DirDataDTO dirData, MultistatusWriter writer) {
+        String sql = "SELECT id, name, NULL, 0, created_at, last_modified, ctag FROM directories WHERE id = ?";
+        db.queryOne(sql, WebdavService::member, dirData.id())
+                .ifPresent(dir -> writer.directory(dirData.name(), dirData.path(), dir.createdAt(), dir.lastModified(), Utils.directoryETag(dir.id(), dir.tag())));
+    }
+
+    /**
+     * Writes the directories and files in a directory, a page of rows at a time in order of name
+     *
+     * @param subdirs receives the directories written
+     */
+    private void writeChildren(DataService db, DirDataDTO dirData, MultistatusWriter writer, Consumer<DirDataDTO> subdirs) {
+        String sql1 = "SELECT id, name, NULL, 0, created_at, last_modified, ctag FROM directories WHERE parent = ? AND name > ? ORDER BY name LIMIT ?";
+        forEachPage(db, sql1, dirData.id(), dir -> {
+            String path = dirData.path() + "/" + dir.name();
+            writer.directory(dir.name(), path, dir.createdAt(), dir.lastModified(), Utils.directoryETag(dir.id(), dir.tag()));
+            subdirs.accept(new DirDataDTO(dir.id(), dir.name(), path, dir.createdAt(), dir.lastModified(), dirData.id()));
+        });
+        String sql2 = "SELECT id, name, mime, size, created_at, last_modified, version FROM files WHERE directory_id = ? AND name > ? ORDER BY name LIMIT ?";
+        forEachPage(db, sql2, dirData.id(), file -> {
+            String etag = Utils.fileETag(file.id(), file.tag());
+            writer.file(file.name(), dirData.path() + "/" + file.name(), file.mime(), file.size(), file.createdAt(), file.lastModified(), etag);
+        });
+    }
+
+    /**
+     * Writes every directory and file under a directory, walking the tree one directory at a time. The tree was
+     * counted against the limit, so the directories waiting to be walked fit in memory.
+     */
+    private void writeTree(DataService db, DirDataDTO dirData, MultistatusWriter writer) {
+        Deque<DirDataDTO> pending = new ArrayDeque<>();
+        pending.add(dirData);
+        while (!pending.isEmpty()) {
+            writeChildren(db, pending.poll(), writer, pending::add);
+        }
+    }
+
+    /**
+     * Reads the children of a directory with a keyset query, the query takes the directory id, the last name of
+     * the previous page and the page size. Each page is read before it is written, so the reader is not held
+     * while the response is sent.
+     */
+    private static void forEachPage(DataService db, String sql, int dirId, Consumer<Member> consumer) {
+        String after = "";
+        List<Member> page;
+        do {
+            page = db.queryList(sql, WebdavService::member, dirId, after, PAGE_SIZE);
+            page.forEach(consumer);
+            if (!page.isEmpty()) after = page.get(page.size() - 1).name();
+        } while (page.size() == PAGE_SIZE);
+    }
+
+    private static Member member(ResultSetWrapper rs) {
+        return new Member(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getLong(4), rs.getLong(5), rs.getLong(6), rs.getLong(7));
+    }
+
+    private StreamingResponseBody propfindFile(String path, int rootDir) {
         var data = storageService.resolveFile(path, rootDir);
         if (data.id() == 0) throw new ResourceNotFoundException("File " + path + " does not exist");
-        return Multistatus.builder().file(data.name(), data.path(), data.mime(), data.size(), data.createdAt(), data.lastModified()).build();
+        return output -> {
+            try (var writer = new MultistatusWriter(output)) {
+                writer.file(data.name(), data.path(), data.mime(), data.size(), data.createdAt(), data.lastModified(), data.etag());
+            }
+        };
+    }
+
+    /**
+     * @param path    file path
+     * @param rootDir user root directory
+     * @return the file, with id 0 if it does not exist
+     * @throws ResourceNotFoundException if its directory does not exist
+     */
+    public FileDataDTO resolveFile(String path, int rootDir) {
+        return storageService.resolveFile(path, rootDir);
     }
 
-    public RetrievedFileDTO retrieve(String path, WebdavSessionDTO wdsessionDTO) {
-        return storageService.retrieve(path, wdsessionDTO.toSessionDTO());
+    /**
+     * ETag and modification time of a resource, read from its row without opening its blob
+     *
+     * @param path    requested path, directories end with /
+     * @param rootDir user root directory
+     * @return the state, without ETag if the resource does not exist
+     */
+    public ResourceStateDTO state(String path, int rootDir) {
+        try {
+            if (path.endsWith("/")) {
+                var dirData = storageService.resolveDir(path.substring(0, path.length() - 1), rootDir, false);
+                if (dirData.id() == 0) return new ResourceStateDTO(null, 0);
+                String sql = "SELECT last_modified, ctag FROM directories WHERE id = ?";
+                return shardService.forRoot(rootDir).queryOne(sql, rs -> new ResourceStateDTO(Utils.directoryETag(dirData.id(), rs.getLong(2)), rs.getLong(1)), dirData.id())
+                        .orElse(new ResourceStateDTO(null, 0));
+            }
+            var data = storageService.resolveFile(path, rootDir);
+            return data.exists() ? new ResourceStateDTO(data.etag(), data.lastModified()) : new ResourceStateDTO(null, 0);
+        } catch (ResourceNotFoundException ex) {
+            return new ResourceStateDTO(null, 0);
+        }
     }
 
-    public void store(String path, String mime, long size, InputStream input, WebdavSessionDTO wdsessionDTO) {
-        storageService.store(path, mime, size, input, wdsessionDTO.toSessionDTO());
+    public RetrievedFileDTO retrieve(FileDataDTO data, WebdavSessionDTO wdsessionDTO) {
+        return storageService.retrieve(data, wdsessionDTO.toSessionDTO());
     }
 
-    public void delete(String path, WebdavSessionDTO wdsessionDTO) {
+    public void store(String path, String mime, long size, InputStream input, WebdavSessionDTO wdsessionDTO, ResourceStateDTO expected) {
+        storageService.store(path, mime, size, input, wdsessionDTO.toSessionDTO(), expected);
+    }
+
+    public UploadStatusDTO upload(String path, String mime, ContentRangeDTO range, InputStream input, WebdavSessionDTO wdsessionDTO, ResourceStateDTO expected) {
+        return uploadService.put(path, mime, range, input, wdsessionDTO.toSessionDTO(), expected);
+    }
+
+    public void delete(String path, WebdavSessionDTO wdsessionDTO, ResourceStateDTO expected) {
         if (path.endsWith("/")) {
             path = path.substring(0, path.length() - 1);
             storageService.deleteDirectory(path, true, wdsessionDTO.rootDir());
         } else {
-            storageService.delete(path, wdsessionDTO.rootDir());
+            storageService.delete(path, wdsessionDTO.rootDir(), expected);
         }
     }
 
@@ -111,4 +346,29 @@ public class WebdavService {
         if (resolvedFileSrc.id() != 0) storageService.copyFile(from, to, wdsession.toSessionDTO());
     }
 
+    /**
+     * Last change of a path since a sync token
+     *
+     * @param path      resource path
+     * @param directory true if the resource is a directory
+     * @param deleted   true if the resource was removed
+     * @param id        number of the change
+     */
+    private record Change(String path, boolean directory, boolean deleted, long id) {
+    }
+
+    /**
+     * Directory or file read for a multistatus response
+     *
+     * @param id           row id
+     * @param name         name in its directory
+     * @param mime         mime type, null for directories
+     * @param size         size in bytes, 0 for directories
+     * @param createdAt    creation time
+     * @param lastModified modification time
+     * @param tag          change tag of a directory or version of a file
+     */
+    private record Member(int id, String name, String mime, long size, long createdAt, long lastModified, long tag) {
+    }
+
 }
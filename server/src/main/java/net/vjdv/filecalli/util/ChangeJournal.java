@@ -0,0 +1,244 @@
+package net.vjdv.filecalli.util;
+
+import lombok.extern.slf4j.Slf4j;
+import net.vjdv.filecalli.exceptions.DataException;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Encrypted append-only journal of the statements of committed transactions. Replaying the journal over the
+ * snapshot it follows gives the database as it was at the last commit.
+ * <p>
+ * The file starts with a header holding a random salt, then each record is one transaction, encrypted like a
+ * segment of the v2 format with the record number as nonce. A journal is never reopened for appending, so a
+ * record number is never used twice with the same salt.
+ */
+@Slf4j
+public class ChangeJournal implements AutoCloseable {
+
+    private static final byte[] MAGIC = {'F', 'C', 'J', 'O', 'U', 'R', 0, 1};
+    private static final int SALT_SIZE = 16;
+    private static final int HEADER_SIZE = MAGIC.length + SALT_SIZE;
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte BYTES = 4;
+    private static final byte DOUBLE = 5;
+
+    private final FileChannel channel;
+    private final SegmentCipher cipher;
+    private long records = 0;
+
+    private ChangeJournal(FileChannel channel, SegmentCipher cipher) {
+        this.channel = channel;
+        this.cipher = cipher;
+    }
+
+    /**
+     * Creates an empty journal, replacing the file if it exists
+     *
+     * @param file journal file
+     * @param key  key used to encrypt the records
+     * @return the journal open for appending
+     * @throws IOException if the file cannot be written
+     */
+    public static ChangeJournal create(Path file, SecretKey key) throws IOException {
+        byte[] salt = new byte[SALT_SIZE];
+        new SecureRandom().nextBytes(salt);
+        var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            writeFully(channel, ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).put(salt).flip());
+            channel.force(true);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return new ChangeJournal(channel, new SegmentCipher(key, salt));
+    }
+
+    /**
+     * Appends the statements of a committed transaction and waits until they are on disk
+     *
+     * @param statements statements in the order they were executed
+     * @throws IOException if the record cannot be written
+     */
+    public void append(List<Statement> statements) throws IOException {
+        byte[] plain = serialize(statements);
+        byte[] encrypted = new byte[plain.length + SegmentCipher.TAG_SIZE];
+        int length = cipher.seal(records, false, plain, 0, plain.length, encrypted, 0);
+        var buffer = ByteBuffer.allocate(4 + length).putInt(length).put(encrypted, 0, length).flip();
+        writeFully(channel, buffer);
+        channel.force(false);
+        records++;
+    }
+
+    /**
+     * @return records appended to this journal
+     */
+    public long records() {
+        return records;
+    }
+
+    /**
+     * @return size of the journal file in bytes
+     * @throws IOException if the size cannot be read
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads the records of a journal. A record cut by a crash ends the replay, it belongs to a transaction
+     * that was never acknowledged.
+     *
+     * @param file     journal file
+     * @param key      key used to encrypt the records
+     * @param consumer receives the statements of each record in order
+     * @return number of records read
+     * @throws IOException if the file cannot be read
+     */
+    public static long replay(Path file, SecretKey key, Consumer<List<Statement>> consumer) throws IOException {
+        try (var input = new DataInputStream(Files.newInputStream(file))) {
+            byte[] header = input.readNBytes(HEADER_SIZE);
+            if (header.length < HEADER_SIZE) return 0;
+            if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+                throw new DataException("Invalid journal " + file);
+            }
+            var cipher = new SegmentCipher(key, Arrays.copyOfRange(header, MAGIC.length, HEADER_SIZE));
+            long index = 0;
+            while (true) {
+                byte[] lengthBytes = input.readNBytes(4);
+                if (lengthBytes.length == 0) break;
+                int length = lengthBytes.length == 4 ? ByteBuffer.wrap(lengthBytes).getInt() : -1;
+                byte[] encrypted = length >= SegmentCipher.TAG_SIZE ? input.readNBytes(length) : new byte[0];
+                if (length < SegmentCipher.TAG_SIZE || encrypted.length < length) {
+                    log.warn("Journal {} ends with an incomplete record after {} records", file, index);
+                    break;
+                }
+                byte[] plain = new byte[length - SegmentCipher.TAG_SIZE];
+                try {
+                    cipher.open(index, false, encrypted, 0, length, plain, 0);
+                } catch (IOException ex) {
+                    log.warn("Journal {} has an invalid record after {} records", file, index, ex);
+                    break;
+                }
+                consumer.accept(deserialize(plain));
+                index++;
+            }
+            return index;
+        }
+    }
+
+    private static byte[] serialize(List<Statement> statements) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var output = new DataOutputStream(bytes);
+        output.writeInt(statements.size());
+        for (Statement statement : statements) {
+            writeBytes(output, statement.sql().getBytes(StandardCharsets.UTF_8));
+            output.writeInt(statement.params().length);
+            for (Object param : statement.params()) {
+                if (param == null) {
+                    output.writeByte(NULL);
+                } else if (param instanceof String value) {
+                    output.writeByte(STRING);
+                    writeBytes(output, value.getBytes(StandardCharsets.UTF_8));
+                } else if (param instanceof Integer value) {
+                    output.writeByte(INTEGER);
+                    output.writeInt(value);
+                } else if (param instanceof Long value) {
+                    output.writeByte(LONG);
+                    output.writeLong(value);
+                } else if (param instanceof byte[] value) {
+                    output.writeByte(BYTES);
+                    writeBytes(output, value);
+                } else if (param instanceof Double value) {
+                    output.writeByte(DOUBLE);
+                    output.writeDouble(value);
+                } else {
+                    throw new DataException("Parameter type not supported by the journal: " + param.getClass());
+                }
+            }
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private static List<Statement> deserialize(byte[] plain) throws IOException {
+        var input = new DataInputStream(new ByteArrayInputStream(plain));
+        int count = input.readInt();
+        List<Statement> statements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String sql = new String(readBytes(input), StandardCharsets.UTF_8);
+            Object[] params = new Object[input.readInt()];
+            for (int j = 0; j < params.length; j++) {
+                byte type = input.readByte();
+                params[j] = switch (type) {
+                    case NULL -> null;
+                    case STRING -> new String(readBytes(input), StandardCharsets.UTF_8);
+                    case INTEGER -> input.readInt();
+                    case LONG -> input.readLong();
+                    case BYTES -> readBytes(input);
+                    case DOUBLE -> input.readDouble();
+                    default -> throw new IOException("Unknown parameter type " + type);
+                };
+            }
+            statements.add(new Statement(sql, params));
+        }
+        return statements;
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        return input.readNBytes(input.readInt());
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Statement executed by a transaction
+     *
+     * @param sql    the statement
+     * @param params its parameters
+     */
+    public record Statement(String sql, Object[] params) {
+        public Statement {
+            for (Object param : params) {
+                if (param != null && !(param instanceof String || param instanceof Integer || param instanceof Long
+                        || param instanceof byte[] || param instanceof Double)) {
+                    throw new DataException("Parameter type not supported by the journal: " + param.getClass());
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package net.vjdv.filecalli.util;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Preconditions of RFC 9110 section 13, evaluated from the ETag and modification time of the resource before
+ * its content is read or its body is consumed
+ */
+public interface ConditionalRequests {
+
+    /**
+     * Evaluates If-None-Match, or If-Modified-Since when there is no If-None-Match, of a GET
+     *
+     * @param request      the request
+     * @param etag         current ETag of the resource
+     * @param lastModified modification epoch millis of the resource
+     * @return true if the copy of the client is current and 304 is answered
+     */
+    static boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) return matches(ifNoneMatch, etag, true);
+        long since = dateHeader(request, "If-Modified-Since");
+        return since != -1 && lastModified / 1000 <= since / 1000;
+    }
+
+    /**
+     * Evaluates If-Match, or If-Unmodified-Since when there is no If-Match, and If-None-Match of a request
+     * changing a resource
+     *
+     * @param request      the request
+     * @param etag         current ETag of the resource, null if it does not exist
+     * @param lastModified modification epoch millis of the resource
+     * @return true if the change is refused with 412
+     */
+    static boolean preconditionFailed(HttpServletRequest request, String etag, long lastModified) {
+        String ifMatch = request.getHeader("If-Match");
+        if (ifMatch != null) {
+            if (etag == null || !matches(ifMatch, etag, false)) return true;
+        } else if (etag != null) {
+            long since = dateHeader(request, "If-Unmodified-Since");
+            if (since != -1 && lastModified / 1000 > since / 1000) return true;
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        return ifNoneMatch != null && etag != null && matches(ifNoneMatch, etag, true);
+    }
+
+    /**
+     * @param header list of entity tags, or *
+     * @param etag   current ETag of the resource
+     * @param weak   true for the weak comparison of If-None-Match, false for the strong one of If-Match
+     */
+    private static boolean matches(String header, String etag, boolean weak) {
+        if ("*".equals(header.trim())) return true;
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                if (!weak) continue;
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the date of a header in epoch millis, -1 if it is missing or invalid
+     */
+    private static long dateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException ex) {
+            return -1;
+        }
+    }
+
+}
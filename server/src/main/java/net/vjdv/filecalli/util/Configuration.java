@@ -16,6 +16,20 @@ public class Configuration {
     private final Path dataPath;
     private final Path tempPath;
     private final String salt;
+    private final int cryptoThreads;
+    private final long parallelCryptoThreshold;
+    private final int dbReaders;
+    private final boolean dbGroupCommit;
+    private final int dbStatementCacheSize;
+    private final int dirCacheSize;
+    private final long journalCompactBytes;
+    private final boolean dbShards;
+    private final int maxSessions;
+    private final long webdavSessionTtl;
+    private final int propfindLimit;
+    private final long uploadExpiry;
+    private final long stagingQuota;
+    private final long stagingWait;
 
     public Configuration(Environment env) {
         //host where the server is running
@@ -28,6 +42,34 @@ public class Configuration {
         tempPath = Paths.get(env.getProperty("temppath", "./temp"));
         //salt used for hashes and encryption
         salt = env.getProperty("salt", "calli");
+        //threads used to encrypt and decrypt large files, at least one
+        cryptoThreads = Math.max(1, env.getProperty("cryptothreads", Integer.class, Runtime.getRuntime().availableProcessors()));
+        //files from this size in bytes are encrypted and decrypted in parallel
+        parallelCryptoThreshold = env.getProperty("parallelcryptothreshold", Long.class, 8L * 1024 * 1024);
+        //read only connections to the database
+        dbReaders = env.getProperty("dbreaders", Integer.class, 4);
+        //writes queued at the same time are committed together
+        dbGroupCommit = env.getProperty("dbgroupcommit", Boolean.class, true);
+        //prepared statements kept open by each database connection
+        dbStatementCacheSize = env.getProperty("dbstatementcache", Integer.class, 64);
+        //directories kept in memory to resolve paths, 0 disables the cache
+        dirCacheSize = env.getProperty("dircachesize", Integer.class, 100_000);
+        //size in bytes of the database journal that triggers a new encrypted snapshot
+        journalCompactBytes = env.getProperty("journalcompactbytes", Long.class, 8L * 1024 * 1024);
+        //each user gets its own database, the main database keeps users and webdav tokens
+        dbShards = env.getProperty("dbshards", Boolean.class, false);
+        //sessions kept in memory by each session store, the ones closest to expire are evicted first
+        maxSessions = env.getProperty("maxsessions", Integer.class, 100_000);
+        //seconds a webdav login is trusted before checking the token again in the database
+        webdavSessionTtl = env.getProperty("webdavsessionttl", Long.class, 300L);
+        //resources a PROPFIND with Depth infinity may return
+        propfindLimit = env.getProperty("propfindlimit", Integer.class, 100_000);
+        //seconds a resumable upload is kept without receiving data
+        uploadExpiry = env.getProperty("uploadexpiry", Long.class, 86_400L);
+        //bytes the files being stored at the same time may take together before they are published, a file stored alone is not limited
+        stagingQuota = env.getProperty("stagingquota", Long.class, 1024L * 1024 * 1024);
+        //seconds a store waits for staging space before failing
+        stagingWait = env.getProperty("stagingwait", Long.class, 30L);
         instance = this;
     }
 
@@ -5,20 +5,50 @@ import net.vjdv.filecalli.exceptions.CryptException;
 import net.vjdv.filecalli.exceptions.ServiceException;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
+import javax.crypto.CipherInputStream;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class CryptHelper {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Plain size of the segments written by the v2 format
+     */
+    public static final int SEGMENT_SIZE = 64 * 1024;
+    private static final byte[] V2_MAGIC = {'F', 'C', 'A', 'L', 'L', 'I', 0, 2};
+    private static final int SALT_SIZE = 16;
+    private static final int V2_HEADER_SIZE = V2_MAGIC.length + 4 + SALT_SIZE;
+    /**
+     * Plain size of the chunks processed by one crypto worker
+     */
+    static final int CHUNK_SIZE = 8 * SEGMENT_SIZE;
+    private static ExecutorService workers;
+
     /**
      * Generates a hash from a text with salt using SHA-256 algorithm
      *
@@ -36,39 +66,284 @@ public class CryptHelper {
     }
 
     /**
-     * Encrypts a input stream to a file using AES/CBC/PKCS5Padding
+     * Encrypts a input stream to a file using the v2 format: a header followed by segments of
+     * {@value #SEGMENT_SIZE} bytes encrypted with AES/GCM, so any part of the file can be decrypted alone.
+     * Once the parallel threshold is read, the following chunks are encrypted by the crypto workers and
+     * written in order, keeping at most one chunk per worker in memory.
      *
      * @param input  Input stream
      * @param output Output file
      * @param key    Secret key
+     * @return bytes of plain data read from the input
      * @throws IOException If an I/O error occurs
      */
-    public static void encrypt(InputStream input, Path output, SecretKey key) throws IOException {
-        //random iv
-        byte[] randomBytes = new byte[16];
-        SecureRandom secureRandom = new SecureRandom();
-        secureRandom.nextBytes(randomBytes);
-        //cipher
-        try (input) {
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(randomBytes));
-            //in and out streams
-            try (var outputStream = Files.newOutputStream(output)) {
-                CipherOutputStream cipherOutputStream = new CipherOutputStream(outputStream, cipher);
-                //write iv
-                outputStream.write(randomBytes);
-                //write file
-                input.transferTo(cipherOutputStream);
-                cipherOutputStream.close();
+    public static long encrypt(InputStream input, Path output, SecretKey key) throws IOException {
+        //random salt for the file key
+        byte[] salt = new byte[SALT_SIZE];
+        new SecureRandom().nextBytes(salt);
+        SegmentCipher cipher = new SegmentCipher(key, salt);
+        var config = Configuration.getInstance();
+        Deque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+        //in and out streams
+        try (input; var outputStream = Files.newOutputStream(output)) {
+            //write header
+            var header = ByteBuffer.allocate(V2_HEADER_SIZE).put(V2_MAGIC).putInt(SEGMENT_SIZE).put(salt);
+            outputStream.write(header.array());
+            //write chunks, the last one is shorter than the others even if it is empty
+            byte[] plain = new byte[CHUNK_SIZE];
+            byte[] encrypted = new byte[encryptedChunkSize(CHUNK_SIZE)];
+            long readBytes = 0;
+            long firstSegment = 0;
+            boolean last;
+            do {
+                int read = input.readNBytes(plain, 0, CHUNK_SIZE);
+                last = read < CHUNK_SIZE;
+                readBytes += read;
+                if (pending.isEmpty() && readBytes < config.getParallelCryptoThreshold()) {
+                    int length = sealChunk(cipher, firstSegment, last, plain, read, encrypted);
+                    outputStream.write(encrypted, 0, length);
+                } else {
+                    SegmentCipher worker = cipher.fork();
+                    byte[] chunk = Arrays.copyOf(plain, read);
+                    long first = firstSegment;
+                    boolean lastChunk = last;
+                    pending.add(workers().submit(() -> {
+                        byte[] sealed = new byte[encryptedChunkSize(chunk.length)];
+                        return ByteBuffer.wrap(sealed, 0, sealChunk(worker, first, lastChunk, chunk, chunk.length, sealed));
+                    }));
+                    if (pending.size() >= config.getCryptoThreads()) write(await(pending.poll()), outputStream);
+                }
+                firstSegment += CHUNK_SIZE / SEGMENT_SIZE;
+            } while (!last);
+            while (!pending.isEmpty()) {
+                write(await(pending.poll()), outputStream);
             }
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
-                 InvalidAlgorithmParameterException ex) {
-            throw new CryptException("Error encrypting file", ex);
+            return readBytes;
+        } finally {
+            pending.forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * Appends plain data to a v2 file written by several requests, like a resumable upload. Only whole segments
+     * are written unless the data reaches the end of the file, the plain bytes of an incomplete segment are
+     * discarded and must be sent again. An error reading the input ends the data, the segments written before
+     * it are kept.
+     * <p>
+     * The index of a segment is its nonce, so an index is never sealed twice with the same salt: the file must
+     * end after the given segments, and a file started again gets a new salt. A file holding segments that were
+     * not acknowledged is checked with {@link #appendableSegments(Path, SecretKey, long)}.
+     *
+     * @param input    plain data following the segments already in the file
+     * @param output   v2 file, its header is written with a new salt when it has no segments
+     * @param key      secret key
+     * @param segments segments already in the file
+     * @param length   bytes of plain data to read from the input at most
+     * @param total    plain size of the whole file, -1 if unknown; the final segment is sealed only when the data
+     *                 reaches it
+     * @return bytes of plain data written
+     * @throws IOException if an I/O error occurs or the file is not a v2 file
+     */
+    public static long appendEncrypted(InputStream input, Path output, SecretKey key, long segments, long length, long total) throws IOException {
+        try (input; var channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = V2_HEADER_SIZE + segments * (SEGMENT_SIZE + SegmentCipher.TAG_SIZE);
+            byte[] salt;
+            if (segments == 0) {
+                salt = new byte[SALT_SIZE];
+                new SecureRandom().nextBytes(salt);
+                channel.truncate(0);
+                var header = ByteBuffer.allocate(V2_HEADER_SIZE).put(V2_MAGIC).putInt(SEGMENT_SIZE).put(salt).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            } else {
+                salt = readSalt(channel, output);
+                if (channel.size() != position) {
+                    throw new CryptException("File " + output + " does not end after segment " + segments + ", its nonces were used");
+                }
+            }
+            channel.position(position);
+            SegmentCipher cipher = new SegmentCipher(key, salt);
+            byte[] plain = new byte[SEGMENT_SIZE];
+            byte[] sealed = new byte[SEGMENT_SIZE + SegmentCipher.TAG_SIZE];
+            long offset = segments * SEGMENT_SIZE;
+            long index = segments;
+            long written = 0;
+            while (true) {
+                int read;
+                try {
+                    read = input.readNBytes(plain, 0, (int) Math.min(SEGMENT_SIZE, length - written));
+                } catch (IOException ex) {
+                    log.info("Input of {} failed after {} bytes: {}", output, written, ex.getMessage());
+                    break;
+                }
+                //the last segment is shorter than the others even if it is empty
+                boolean end = read < SEGMENT_SIZE && offset + written + read == total;
+                if (read < SEGMENT_SIZE && !end) break;
+                var buffer = ByteBuffer.wrap(sealed, 0, cipher.seal(index++, end, plain, 0, read, sealed, 0));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                written += read;
+                if (end) break;
+            }
+            channel.force(false);
+            return written;
+        }
+    }
+
+    /**
+     * Counts the segments a v2 file written by {@link #appendEncrypted} can be continued from. Segments after
+     * the ones acknowledged, written before a crash, are kept if they decrypt, since their nonces cannot seal
+     * other data.
+     *
+     * @param file     v2 file
+     * @param key      secret key
+     * @param verified segments already acknowledged
+     * @return the whole segments in the file, -1 if it must be written again from the start because it ends
+     * with an incomplete or final segment, or a segment does not decrypt
+     * @throws IOException if an I/O error occurs
+     */
+    public static long appendableSegments(Path file, SecretKey key, long verified) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long sealedSize = SEGMENT_SIZE + SegmentCipher.TAG_SIZE;
+            long body = channel.size() - V2_HEADER_SIZE;
+            if (body < 0 || body % sealedSize != 0 || body / sealedSize < verified) return -1;
+            byte[] salt;
+            try {
+                salt = readSalt(channel, file);
+            } catch (CryptException ex) {
+                return -1;
+            }
+            SegmentCipher cipher = new SegmentCipher(key, salt);
+            byte[] sealed = new byte[(int) sealedSize];
+            byte[] plain = new byte[SEGMENT_SIZE];
+            long segments = body / sealedSize;
+            for (long index = verified; index < segments; index++) {
+                var buffer = ByteBuffer.wrap(sealed);
+                long position = V2_HEADER_SIZE + index * sealedSize;
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) return -1;
+                }
+                try {
+                    cipher.open(index, false, sealed, 0, sealed.length, plain, 0);
+                } catch (IOException ex) {
+                    return -1;
+                }
+            }
+            return segments;
+        }
+    }
+
+    /**
+     * @return the salt in the header of a v2 file
+     * @throws CryptException if the file is not a v2 file
+     */
+    private static byte[] readSalt(FileChannel channel, Path file) throws IOException {
+        var header = ByteBuffer.allocate(V2_HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) throw new CryptException("Error reading header of " + file);
+        }
+        header.flip();
+        if (!Arrays.equals(header.array(), 0, V2_MAGIC.length, V2_MAGIC, 0, V2_MAGIC.length)) {
+            throw new CryptException("Not a v2 file " + file);
+        }
+        header.position(V2_MAGIC.length);
+        if (header.getInt() != SEGMENT_SIZE) throw new CryptException("Invalid segment size");
+        byte[] salt = new byte[SALT_SIZE];
+        header.get(salt);
+        return salt;
+    }
+
+    /**
+     * Re-encrypts a file with another key without writing the plain data anywhere, the data flows from the
+     * decrypting stream to the encryptor one chunk at a time
+     *
+     * @param input   encrypted file
+     * @param fromKey key of the encrypted file
+     * @param output  file to write
+     * @param toKey   key for the new file
+     * @throws IOException if an I/O error occurs
+     */
+    public static void transcrypt(Path input, SecretKey fromKey, Path output, SecretKey toKey) throws IOException {
+        encrypt(decryptingStream(input, fromKey), output, toKey);
+    }
+
+    /**
+     * Encrypts the segments of a chunk
+     *
+     * @param cipher       cipher of the file
+     * @param firstSegment index of the first segment in the chunk
+     * @param lastChunk    true if no more data follows this chunk
+     * @param plain        plain data
+     * @param length       length of the plain data
+     * @param encrypted    buffer for encrypted data
+     * @return length of encrypted data
+     */
+    private static int sealChunk(SegmentCipher cipher, long firstSegment, boolean lastChunk, byte[] plain, int length, byte[] encrypted) {
+        int offset = 0;
+        int written = 0;
+        long index = firstSegment;
+        boolean last;
+        do {
+            int segmentLength = Math.min(SEGMENT_SIZE, length - offset);
+            last = lastChunk && segmentLength < SEGMENT_SIZE;
+            written += cipher.seal(index++, last, plain, offset, segmentLength, encrypted, written);
+            offset += segmentLength;
+        } while (offset < length || (lastChunk && !last));
+        return written;
+    }
+
+    /**
+     * @return size of the encrypted chunk, with room for an empty last segment
+     */
+    private static int encryptedChunkSize(int plainLength) {
+        return plainLength + (plainLength / SEGMENT_SIZE + 1) * SegmentCipher.TAG_SIZE;
+    }
+
+    private static void write(ByteBuffer buffer, OutputStream outputStream) throws IOException {
+        outputStream.write(buffer.array(), buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Shared pool that encrypts and decrypts chunks of large files
+     *
+     * @return the pool, created on first use with the configured number of threads
+     */
+    static synchronized ExecutorService workers() {
+        if (workers == null) {
+            var counter = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(Configuration.getInstance().getCryptoThreads(), runnable -> {
+                var thread = new Thread(runnable, "crypt-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return workers;
+    }
+
+    /**
+     * Waits for the result of a worker
+     *
+     * @param future the task submitted to the workers
+     * @return the result of the task
+     * @throws IOException if the task failed with an I/O error or the thread was interrupted
+     */
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for crypto worker");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException cause) throw cause;
+            if (ex.getCause() instanceof RuntimeException cause) throw cause;
+            throw new CryptException("Error in crypto worker", ex.getCause());
         }
     }
 
     /**
-     * Decrypts a input stream to a file using AES/CBC/PKCS5Padding
+     * Decrypts a input stream to a file, both v1 and v2 formats are supported
      *
      * @param input  input stream of encrypted data
      * @param output output file path
@@ -76,25 +351,165 @@ public class CryptHelper {
      * @throws IOException if an I/O error occurs
      */
     public static void decrypt(InputStream input, Path output, SecretKey key) throws IOException {
-        //read iv
+        try (var decryptedStream = decryptingStream(input, key);
+             var outputStream = Files.newOutputStream(output)) {
+            decryptedStream.transferTo(outputStream);
+        }
+    }
+
+    /**
+     * Wraps a input stream of encrypted data so it can be read as plain data, decrypting on demand.
+     * Both v1 and v2 formats are supported.
+     *
+     * @param input input stream of encrypted data, closed when the returned stream is closed
+     * @param key   secret key
+     * @return stream of decrypted data
+     * @throws IOException if the header cannot be read
+     */
+    public static InputStream decryptingStream(InputStream input, SecretKey key) throws IOException {
+        byte[] head = input.readNBytes(V2_MAGIC.length);
+        if (Arrays.equals(head, V2_MAGIC)) {
+            var header = ByteBuffer.wrap(input.readNBytes(V2_HEADER_SIZE - V2_MAGIC.length));
+            return segmentedStream(Channels.newChannel(input), header, key, false);
+        }
+        //v1 files start with the iv
         byte[] iv = new byte[16];
-        int readed = input.read(iv);
-        if (readed != 16) {
+        System.arraycopy(head, 0, iv, 0, head.length);
+        int read = head.length + input.readNBytes(iv, head.length, 16 - head.length);
+        if (read != 16) {
+            input.close();
             throw new CryptException("Error reading IV");
         }
-        //cipher
-        try (input) {
+        return cbcStream(input, iv, key);
+    }
+
+    /**
+     * Opens an encrypted file to be read as plain data. If the file is in the v2 format, skipping bytes of
+     * the returned stream only decrypts the segments after the new position.
+     *
+     * @param file encrypted file
+     * @param key  secret key
+     * @return stream of decrypted data
+     * @throws IOException if the file cannot be opened
+     */
+    public static InputStream decryptingStream(Path file, SecretKey key) throws IOException {
+        var channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            var header = ByteBuffer.allocate(V2_HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) break;
+            }
+            header.flip();
+            byte[] head = header.array();
+            if (header.remaining() == V2_HEADER_SIZE && Arrays.equals(head, 0, V2_MAGIC.length, V2_MAGIC, 0, V2_MAGIC.length)) {
+                header.position(V2_MAGIC.length);
+                return segmentedStream(channel, header, key, false);
+            }
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+        channel.position(0);
+        return decryptingStream(Channels.newInputStream(channel), key);
+    }
+
+    /**
+     * Reads an encrypted file opened by the caller as plain data. The channel is read at positions of the
+     * returned stream and is not closed with it, so several streams can read it at the same time.
+     *
+     * @param channel encrypted file
+     * @param key     secret key
+     * @return stream of decrypted data
+     * @throws IOException if the header cannot be read
+     */
+    public static InputStream decryptingStream(FileChannel channel, SecretKey key) throws IOException {
+        var header = ByteBuffer.allocate(V2_HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) break;
+        }
+        header.flip();
+        byte[] head = header.array();
+        if (header.remaining() == V2_HEADER_SIZE && Arrays.equals(head, 0, V2_MAGIC.length, V2_MAGIC, 0, V2_MAGIC.length)) {
+            header.position(V2_MAGIC.length);
+            return segmentedStream(channel, header, key, true);
+        }
+        return decryptingStream(positionalStream(channel), key);
+    }
+
+    /**
+     * @return stream reading a channel from its start at a position of its own, closing it leaves the channel open
+     */
+    private static InputStream positionalStream(FileChannel channel) {
+        return new InputStream() {
+            private long position = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+                if (read > 0) position += read;
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Creates the stream for v2 format
+     *
+     * @param channel channel positioned after the header
+     * @param header  header positioned after the magic bytes
+     * @param key     secret key
+     * @param shared  true if the channel belongs to the caller, it is not closed by the stream
+     */
+    private static InputStream segmentedStream(ReadableByteChannel channel, ByteBuffer header, SecretKey key, boolean shared) throws IOException {
+        if (header.remaining() != V2_HEADER_SIZE - V2_MAGIC.length) {
+            if (!shared) channel.close();
+            throw new CryptException("Error reading header");
+        }
+        int segmentSize = header.getInt();
+        if (segmentSize < 1024 || segmentSize > 16 * 1024 * 1024) {
+            if (!shared) channel.close();
+            throw new CryptException("Invalid segment size " + segmentSize);
+        }
+        byte[] salt = new byte[SALT_SIZE];
+        header.get(salt);
+        return new SegmentedDecryptingStream(channel, new SegmentCipher(key, salt), segmentSize, V2_HEADER_SIZE, shared);
+    }
+
+    /**
+     * Creates the stream for v1 format, AES/CBC/PKCS5Padding
+     *
+     * @param input input positioned after the iv
+     * @param iv    the iv
+     * @param key   secret key
+     */
+    private static InputStream cbcStream(InputStream input, byte[] iv, SecretKey key) throws IOException {
+        try {
             Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
             cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
-            //in and out streams
-            try (var outputStream = Files.newOutputStream(output)) {
-                CipherOutputStream cipherOutputStream = new CipherOutputStream(outputStream, cipher);
-                //write file
-                input.transferTo(cipherOutputStream);
-                cipherOutputStream.close();
-            }
+            return new CipherInputStream(new BufferedInputStream(input, BUFFER_SIZE), cipher) {
+                //CipherInputStream only skips buffered bytes, range requests need a real skip
+                @Override
+                public long skip(long n) throws IOException {
+                    byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+                    long remaining = n;
+                    while (remaining > 0) {
+                        int read = read(buffer, 0, (int) Math.min(remaining, buffer.length));
+                        if (read < 0) break;
+                        remaining -= read;
+                    }
+                    return n - remaining;
+                }
+            };
         } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
                  InvalidAlgorithmParameterException ex) {
+            input.close();
             throw new CryptException("Error decrypting file", ex);
         }
     }
@@ -0,0 +1,83 @@
+package net.vjdv.filecalli.util;
+
+import org.springframework.core.io.AbstractResource;
+
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Resource backed by an encrypted file, the content is decrypted while it is being read.
+ * Skipping bytes of the stream seeks in v2 files, so Spring can serve Range requests decrypting only
+ * the segments covering the requested ranges.
+ * <p>
+ * The file is opened when the resource is created and every stream reads the same channel, so the content
+ * can still be read after a new version of the file replaces and deletes it. The resource must be closed
+ * once the response is written.
+ */
+public class DecryptedFileResource extends AbstractResource implements Closeable {
+
+    private final Path file;
+    private final FileChannel channel;
+    private final SecretKey key;
+    private final String filename;
+    private final long size;
+    private final long lastModified;
+
+    /**
+     * @param file         encrypted file
+     * @param key          key used to decrypt the file
+     * @param filename     name of the plain file
+     * @param size         size of the plain file
+     * @param lastModified last modification time of the plain file
+     * @throws IOException if the file cannot be opened, like {@link java.nio.file.NoSuchFileException}
+     */
+    public DecryptedFileResource(Path file, SecretKey key, String filename, long size, long lastModified) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.key = key;
+        this.filename = filename;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return CryptHelper.decryptingStream(channel, key);
+    }
+
+    @Override
+    public boolean exists() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public long contentLength() {
+        return size;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Encrypted file [" + file + "]";
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,140 @@
+package net.vjdv.filecalli.util;
+
+import net.vjdv.filecalli.dto.DirDataDTO;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.IntFunction;
+
+/**
+ * Concurrent cache of the directory tree of each root directory, so resolving a path is a walk of hash maps.
+ * <p>
+ * Directories are added when a path is resolved, directories not found are not cached. Changes to the tree
+ * must call {@link #invalidate(int, String)} after they are committed. A lookup that started before an
+ * invalidation does not cache what it read, because it may have read the tree before the change.
+ */
+public class DirectoryTree {
+
+    private final Map<Integer, Node> roots = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicInteger entries = new AtomicInteger();
+    private final int maxEntries;
+
+    /**
+     * @param maxEntries directories kept in the cache before it is cleared, 0 disables the cache
+     */
+    public DirectoryTree(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Resolves the directories of a path, starting at the root directory. Directories not cached are
+     * loaded and cached.
+     *
+     * @param rootDir     root directory id
+     * @param names       names of the directories of the path
+     * @param rootLoader  loads the root directory
+     * @param childLoader loads a directory by parent and name, returning id 0 if it does not exist
+     * @param useCache    false to load every directory, for lookups that must see uncommitted changes
+     * @return the last directory of the path, or the first that does not exist
+     */
+    public DirDataDTO resolve(int rootDir, String[] names, IntFunction<DirDataDTO> rootLoader,
+                              BiFunction<DirDataDTO, String, DirDataDTO> childLoader, boolean useCache) {
+        useCache = useCache && maxEntries > 0;
+        long startGeneration = generation.get();
+        Node node = useCache ? roots.get(rootDir) : null;
+        DirDataDTO dir;
+        if (node != null) {
+            dir = node.dir;
+        } else {
+            dir = rootLoader.apply(rootDir);
+            if (useCache) node = store(roots, rootDir, dir, startGeneration);
+        }
+        for (String name : names) {
+            Node child = node != null ? node.children.get(name) : null;
+            if (child != null) {
+                node = child;
+                dir = child.dir;
+                continue;
+            }
+            dir = childLoader.apply(dir, name);
+            if (dir.id() == 0) return dir;
+            if (node != null) node = store(node.children, name, dir, startGeneration);
+        }
+        return dir;
+    }
+
+    /**
+     * Removes a directory and its subdirectories from the cache
+     *
+     * @param rootDir root directory id
+     * @param path    path of the directory
+     */
+    public void invalidate(int rootDir, String path) {
+        generation.incrementAndGet();
+        if ("/".equals(path)) {
+            Node removed = roots.remove(rootDir);
+            if (removed != null) entries.addAndGet(-removed.count());
+            return;
+        }
+        Node node = roots.get(rootDir);
+        String[] names = path.substring(1).split("/");
+        for (int i = 0; i < names.length - 1 && node != null; i++) {
+            node = node.children.get(names[i]);
+        }
+        if (node == null) return;
+        Node removed = node.children.remove(names[names.length - 1]);
+        if (removed != null) entries.addAndGet(-removed.count());
+    }
+
+    /**
+     * @return directories in the cache
+     */
+    public int size() {
+        return entries.get();
+    }
+
+    /**
+     * Caches a directory loaded since the given generation
+     *
+     * @return the cached node, null if the tree changed while the directory was loaded
+     */
+    private <K> Node store(Map<K, Node> map, K key, DirDataDTO dir, long startGeneration) {
+        if (generation.get() != startGeneration) return null;
+        Node node = new Node(dir);
+        Node previous = map.putIfAbsent(key, node);
+        if (previous != null) return previous;
+        //an invalidation may have run between the check and the put
+        if (generation.get() != startGeneration) {
+            map.remove(key, node);
+            return null;
+        }
+        if (entries.incrementAndGet() > maxEntries) {
+            generation.incrementAndGet();
+            roots.clear();
+            entries.set(0);
+        }
+        return node;
+    }
+
+    private static class Node {
+        private final DirDataDTO dir;
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+
+        private Node(DirDataDTO dir) {
+            this.dir = dir;
+        }
+
+        private int count() {
+            int count = 1;
+            for (Node child : children.values()) {
+                count += child.count();
+            }
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+package net.vjdv.filecalli.util;
+
+import lombok.extern.slf4j.Slf4j;
+import net.vjdv.filecalli.enums.Parameter;
+import net.vjdv.filecalli.exceptions.DataException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Applies the schema migrations at startup. The database stores its version as {@link Parameter#DATA_VERSION},
+ * {@link SetupHelper#createTables(Connection)} creates the version 1 tables and every later change is a
+ * migration. Each migration runs in its own transaction together with the update of the version, so an
+ * interrupted upgrade resumes from the last migration applied.
+ */
+@Slf4j
+public class MigrationRunner {
+
+    /**
+     * Migrations in order of version
+     */
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(2, "blobs shared by copies", MigrationRunner::addBlobs),
+            new Migration(3, "indexes for path lookups", MigrationRunner::addLookupIndexes),
+            new Migration(4, "users stored in shards", MigrationRunner::addUserShards),
+            new Migration(5, "changes for sync-collection reports", MigrationRunner::addChanges),
+            new Migration(6, "change tags of directories and versions of files", MigrationRunner::addVersions),
+            new Migration(7, "resumable uploads", MigrationRunner::addUploads)
+    );
+
+    private MigrationRunner() {
+    }
+
+    /**
+     * @return version of the database after all migrations
+     */
+    public static int latestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version();
+    }
+
+    /**
+     * Applies the pending migrations
+     *
+     * @param conn connection to the database
+     */
+    public static void migrate(Connection conn) {
+        migrate(conn, latestVersion());
+    }
+
+    /**
+     * Applies the pending migrations up to a version
+     *
+     * @param conn          connection to the database
+     * @param targetVersion last version to apply
+     * @throws DataException if the database is newer than this version of the application
+     */
+    public static void migrate(Connection conn, int targetVersion) {
+        int version = readVersion(conn);
+        if (version > latestVersion()) {
+            throw new DataException("Database version " + version + " is newer than supported version " + latestVersion());
+        }
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version() <= version || migration.version() > targetVersion) continue;
+            log.info("Migrating database to version {}: {}", migration.version(), migration.description());
+            inTransaction(conn, () -> {
+                migration.apply().accept(conn);
+                execute(conn, "UPDATE parameters SET value = '" + migration.version() + "' WHERE ikey = " + Parameter.DATA_VERSION.getValue());
+            });
+        }
+    }
+
+    /**
+     * @param conn connection to the database
+     * @return version of the database, 1 if the version is not stored
+     */
+    public static int readVersion(Connection conn) {
+        String sql = "SELECT value FROM parameters WHERE ikey = ?";
+        try (var ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, Parameter.DATA_VERSION.getValue());
+            try (var rs = ps.executeQuery()) {
+                return rs.next() ? Integer.parseInt(rs.getString(1)) : 1;
+            }
+        } catch (SQLException ex) {
+            throw new DataException("Error reading data version", ex);
+        }
+    }
+
+    /**
+     * Files point to blobs, existing blobs keep the file id so their path does not change
+     */
+    private static void addBlobs(Connection conn) {
+        execute(conn, """
+                CREATE TABLE blobs (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    refs INTEGER NOT NULL,
+                    created_at INTEGER NOT NULL
+                )""");
+        execute(conn, "ALTER TABLE files ADD COLUMN blob_id INTEGER NULL REFERENCES blobs (id)");
+        execute(conn, "INSERT INTO blobs (id, refs, created_at) SELECT id, 1, created_at FROM files");
+        execute(conn, "UPDATE files SET blob_id = id");
+    }
+
+    /**
+     * Lookups by parent and name, the directories index covers the columns read when resolving paths
+     */
+    private static void addLookupIndexes(Connection conn) {
+        execute(conn, "CREATE INDEX idx_directories_parent_name ON directories (parent, name, created_at, last_modified)");
+        execute(conn, "CREATE INDEX idx_files_directory_name ON files (directory_id, name)");
+        execute(conn, "CREATE INDEX idx_files_blob ON files (blob_id)");
+    }
+
+    /**
+     * Users with a shard have their directories, files and blobs in the database of the shard
+     */
+    private static void addUserShards(Connection conn) {
+        execute(conn, "ALTER TABLE users ADD COLUMN shard INTEGER NULL");
+    }
+
+    /**
+     * Log of the paths changed under each root directory, the id is the sync token
+     */
+    private static void addChanges(Connection conn) {
+        execute(conn, """
+                CREATE TABLE changes (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    root INTEGER NOT NULL,
+                    path TEXT NOT NULL,
+                    directory INTEGER NOT NULL,
+                    deleted INTEGER NOT NULL,
+                    created_at INTEGER NOT NULL
+                )""");
+        execute(conn, "CREATE INDEX idx_changes_root ON changes (root, id)");
+    }
+
+    /**
+     * The change tag of a directory is the last change under it, the version of a file grows with its content
+     */
+    private static void addVersions(Connection conn) {
+        execute(conn, "ALTER TABLE directories ADD COLUMN ctag INTEGER NOT NULL DEFAULT 0");
+        execute(conn, "ALTER TABLE files ADD COLUMN version INTEGER NOT NULL DEFAULT 1");
+    }
+
+    /**
+     * Uploads received in several requests, received counts the plain bytes already encrypted in the staging
+     * file of the upload
+     */
+    private static void addUploads(Connection conn) {
+        execute(conn, """
+                CREATE TABLE uploads (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    root INTEGER NOT NULL,
+                    path TEXT NOT NULL,
+                    mime TEXT NOT NULL,
+                    total INTEGER NOT NULL,
+                    received INTEGER NOT NULL,
+                    created_at INTEGER NOT NULL,
+                    updated_at INTEGER NOT NULL
+                )""");
+        execute(conn, "CREATE UNIQUE INDEX idx_uploads_path ON uploads (root, path)");
+    }
+
+    private static void inTransaction(Connection conn, Runnable runnable) {
+        try {
+            conn.setAutoCommit(false);
+            try {
+                runnable.run();
+                conn.commit();
+            } catch (RuntimeException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            throw new DataException("Error migrating database", ex);
+        }
+    }
+
+    private static void execute(Connection conn, String sql) {
+        try (var ps = conn.prepareStatement(sql)) {
+            ps.execute();
+        } catch (SQLException ex) {
+            throw new DataException("Error executing " + sql, ex);
+        }
+    }
+
+    /**
+     * Change of the schema
+     *
+     * @param version     version of the database after the migration
+     * @param description what the migration does
+     * @param apply       statements of the migration
+     */
+    private record Migration(int version, String description, Consumer<Connection> apply) {
+    }
+
+}
@@ -0,0 +1,231 @@
+package net.vjdv.filecalli.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads a multipart/form-data body as it arrives. Each part is returned with a stream of its content that ends
+ * at the next boundary, so a file part can be consumed while it is received, without buffering it in memory or
+ * on disk. A part must be consumed before asking for the next one, whatever is left of it is skipped.
+ */
+public class MultipartReader implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_LINE = 8 * 1024;
+    private static final int MAX_HEADERS = 16;
+
+    private final InputStream input;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private boolean finished = false;
+    private PartStream current;
+
+    /**
+     * @param input    request body, closed with this reader
+     * @param boundary boundary of the content type
+     */
+    public MultipartReader(InputStream input, String boundary) {
+        this.input = input;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[BUFFER_SIZE + delimiter.length];
+        //the first boundary has no line break before it, one is assumed so every delimiter looks the same
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        limit = 2;
+    }
+
+    /**
+     * @param contentType content type of the request
+     * @return the boundary, null if the content is not multipart/form-data
+     */
+    public static String boundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) return null;
+        String boundary = parameters(contentType).get("boundary");
+        return boundary == null || boundary.isEmpty() || boundary.length() > 70 ? null : boundary;
+    }
+
+    /**
+     * Skips the rest of the current part and reads the headers of the next one
+     *
+     * @return the next part, null after the last one
+     * @throws IOException if the body cannot be read or is not valid multipart
+     */
+    public Part next() throws IOException {
+        if (finished) return null;
+        if (current == null) {
+            //preamble before the first boundary
+            new PartStream().transferTo(OutputStream.nullOutputStream());
+        } else {
+            current.transferTo(OutputStream.nullOutputStream());
+        }
+        //after a delimiter, -- closes the body and a line break starts a part
+        fill(2);
+        if (limit - pos < 2) throw new IOException("Multipart body ends without closing boundary");
+        if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        String rest = readLine();
+        if (!rest.isBlank()) throw new IOException("Invalid multipart boundary line");
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            if (headers.size() >= MAX_HEADERS) throw new IOException("Too many headers in multipart part");
+            int colon = line.indexOf(':');
+            if (colon > 0) headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+        var disposition = parameters(headers.getOrDefault("content-disposition", ""));
+        current = new PartStream();
+        return new Part(disposition.get("name"), disposition.get("filename"), headers.get("content-type"), current);
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * Reads a header line, the line break is not included
+     */
+    private String readLine() throws IOException {
+        var line = new ByteArrayOutputStream();
+        while (true) {
+            fill(1);
+            if (pos == limit) throw new IOException("Multipart body ends inside headers");
+            byte b = buffer[pos++];
+            if (b == '\n') break;
+            if (b != '\r') line.write(b);
+            if (line.size() > MAX_HEADER_LINE) throw new IOException("Multipart header line too long");
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads until the buffer has the bytes requested after the position or the body ends
+     */
+    private void fill(int wanted) throws IOException {
+        if (limit - pos >= wanted || eof) return;
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        while (limit < wanted && !eof) {
+            int read = input.read(buffer, limit, buffer.length - limit);
+            if (read == -1) eof = true;
+            else limit += read;
+        }
+    }
+
+    /**
+     * @return index of the delimiter in the buffer after the position, -1 if it is not there
+     */
+    private int findDelimiter() {
+        int last = limit - delimiter.length;
+        outer:
+        for (int i = pos; i <= last; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Parameters of a header value like {@code form-data; name="file"; filename="a.txt"}
+     */
+    private static Map<String, String> parameters(String value) {
+        Map<String, String> params = new HashMap<>();
+        int i = value.indexOf(';');
+        while (i != -1 && i < value.length()) {
+            int eq = value.indexOf('=', i);
+            if (eq == -1) break;
+            String key = value.substring(i + 1, eq).trim().toLowerCase(Locale.ROOT);
+            int end;
+            String param;
+            if (eq + 1 < value.length() && value.charAt(eq + 1) == '"') {
+                var text = new StringBuilder();
+                end = eq + 2;
+                while (end < value.length() && value.charAt(end) != '"') {
+                    if (value.charAt(end) == '\\' && end + 1 < value.length()) end++;
+                    text.append(value.charAt(end++));
+                }
+                param = text.toString();
+                end = value.indexOf(';', end);
+            } else {
+                end = value.indexOf(';', eq);
+                param = value.substring(eq + 1, end == -1 ? value.length() : end).trim();
+            }
+            params.putIfAbsent(key, param);
+            i = end;
+        }
+        return params;
+    }
+
+    /**
+     * Content of a part, ends at the next delimiter. Closing it does not close the body.
+     */
+    private class PartStream extends InputStream {
+
+        private boolean done = false;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) return -1;
+            if (len == 0) return 0;
+            fill(delimiter.length);
+            int index = findDelimiter();
+            int available;
+            if (index == pos) {
+                pos += delimiter.length;
+                done = true;
+                return -1;
+            } else if (index != -1) {
+                available = index - pos;
+            } else if (eof) {
+                throw new IOException("Multipart body ends inside a part");
+            } else {
+                //the end of the buffer may be the start of a delimiter
+                available = limit - pos - delimiter.length + 1;
+            }
+            int count = Math.min(len, available);
+            System.arraycopy(buffer, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            //the body belongs to the reader
+        }
+
+    }
+
+    /**
+     * Part of the body
+     *
+     * @param name        name of the form field
+     * @param filename    name of the uploaded file, null for fields that are not files
+     * @param contentType content type of the part, null if not given
+     * @param content     content of the part, valid until the next part is read
+     */
+    public record Part(String name, String filename, String contentType, InputStream content) {
+    }
+
+}
@@ -0,0 +1,161 @@
+package net.vjdv.filecalli.util;
+
+import net.vjdv.filecalli.exceptions.ServiceException;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Writes the multistatus response of a PROPFIND or a REPORT as it is read from the database, one response element per
+ * resource, so the memory used does not depend on the number of resources.
+ */
+public class MultistatusWriter implements AutoCloseable {
+
+    private static final String DAV = "DAV:";
+    private static final String CS = "http://calendarserver.org/ns/";
+    private static final String OK = "HTTP/1.1 200 OK";
+    private static final String NOT_FOUND = "HTTP/1.1 404 Not Found";
+    private static final XMLOutputFactory FACTORY = XMLOutputFactory.newFactory();
+    private static final DateTimeFormatter CREATED_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+    private final XMLStreamWriter writer;
+    private final String host;
+
+    /**
+     * Writes the start of the document
+     *
+     * @param output stream of the response, not closed by this writer
+     */
+    public MultistatusWriter(OutputStream output) {
+        host = Configuration.getInstance().getHost();
+        try {
+            writer = FACTORY.createXMLStreamWriter(output, "UTF-8");
+            writer.setPrefix("D", DAV);
+            writer.setPrefix("CS", CS);
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement(DAV, "multistatus");
+            writer.writeNamespace("D", DAV);
+            writer.writeNamespace("CS", CS);
+        } catch (XMLStreamException ex) {
+            throw new ServiceException("Error writing multistatus", ex);
+        }
+    }
+
+    /**
+     * Writes the response of a directory, its ETag is also written as the ctag read by sync clients
+     *
+     * @param name         directory name
+     * @param path         directory path, without the trailing slash
+     * @param createdAt    creation epoch millis
+     * @param lastModified modification epoch millis
+     * @param etag         ETag of the directory, changes with anything below it
+     */
+    public void directory(String name, String path, long createdAt, long lastModified, String etag) {
+        try {
+            startResponse(host + path + "/", name, "directory");
+            writer.writeStartElement(CS, "getctag");
+            writer.writeCharacters(etag);
+            writer.writeEndElement();
+            endResponse(createdAt, lastModified, etag);
+        } catch (XMLStreamException ex) {
+            throw new ServiceException("Error writing multistatus", ex);
+        }
+    }
+
+    /**
+     * Writes the response of a file
+     *
+     * @param name         file name
+     * @param path         file path
+     * @param mime         mime type
+     * @param size         size in bytes
+     * @param createdAt    creation epoch millis
+     * @param lastModified modification epoch millis
+     * @param etag         ETag of the file version
+     */
+    public void file(String name, String path, String mime, long size, long createdAt, long lastModified, String etag) {
+        try {
+            startResponse(host + path, name, mime);
+            element("getcontentlength", String.valueOf(size));
+            endResponse(createdAt, lastModified, etag);
+        } catch (XMLStreamException ex) {
+            throw new ServiceException("Error writing multistatus", ex);
+        }
+    }
+
+    /**
+     * Writes the response of a resource removed since the sync token of a report
+     *
+     * @param path      resource path, directories without the trailing slash
+     * @param directory true if the resource was a directory
+     */
+    public void deleted(String path, boolean directory) {
+        try {
+            writer.writeStartElement(DAV, "response");
+            element("href", host + path + (directory ? "/" : ""));
+            element("status", NOT_FOUND);
+            writer.writeEndElement();
+        } catch (XMLStreamException ex) {
+            throw new ServiceException("Error writing multistatus", ex);
+        }
+    }
+
+    /**
+     * Writes the token of a sync-collection report, after the last response
+     *
+     * @param token the new sync token
+     */
+    public void syncToken(String token) {
+        try {
+            element("sync-token", token);
+        } catch (XMLStreamException ex) {
+            throw new ServiceException("Error writing multistatus", ex);
+        }
+    }
+
+    /**
+     * Writes the end of the document and flushes it
+     */
+    @Override
+    public void close() {
+        try {
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException ex) {
+            throw new ServiceException("Error writing multistatus", ex);
+        }
+    }
+
+    private void startResponse(String href, String name, String contentType) throws XMLStreamException {
+        writer.writeStartElement(DAV, "response");
+        element("href", href);
+        writer.writeStartElement(DAV, "propstat");
+        writer.writeStartElement(DAV, "prop");
+        element("displayname", name);
+        element("getcontenttype", contentType);
+    }
+
+    private void endResponse(long createdAt, long lastModified, String etag) throws XMLStreamException {
+        element("getetag", etag);
+        element("creationdate", Instant.ofEpochMilli(createdAt).atZone(ZoneId.systemDefault()).format(CREATED_FORMAT));
+        element("getlastmodified", Utils.toRFC7231(lastModified));
+        writer.writeEndElement();
+        element("status", OK);
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private void element(String name, String text) throws XMLStreamException {
+        writer.writeStartElement(DAV, name);
+        writer.writeCharacters(text);
+        writer.writeEndElement();
+    }
+
+}
@@ -0,0 +1,114 @@
+package net.vjdv.filecalli.util;
+
+import net.vjdv.filecalli.exceptions.CryptException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * Encrypts and decrypts the segments of the v2 format.
+ * <p>
+ * Each file has its own key derived from the user key and the random salt of the header, so the nonce
+ * of a segment can be its index. The last segment is authenticated as such to detect truncated files.
+ */
+class SegmentCipher {
+
+    static final int TAG_SIZE = 16;
+    private static final byte[] LAST = {1};
+    private static final byte[] NOT_LAST = {0};
+
+    private final SecretKey fileKey;
+    private final Cipher cipher;
+    private final byte[] nonce = new byte[12];
+
+    SegmentCipher(SecretKey key, byte[] salt) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+            mac.update("filecalli-v2".getBytes(StandardCharsets.US_ASCII));
+            fileKey = new SecretKeySpec(mac.doFinal(salt), "AES");
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException ex) {
+            throw new CryptException("Error creating segment cipher", ex);
+        }
+    }
+
+    private SegmentCipher(SecretKey fileKey) {
+        this.fileKey = fileKey;
+        try {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException ex) {
+            throw new CryptException("Error creating segment cipher", ex);
+        }
+    }
+
+    /**
+     * Ciphers are not thread safe, each worker needs its own instance
+     *
+     * @return a new cipher for the same file
+     */
+    SegmentCipher fork() {
+        return new SegmentCipher(fileKey);
+    }
+
+    /**
+     * Encrypts a segment
+     *
+     * @param index  segment index
+     * @param last   true if this is the last segment of the file
+     * @param input        plain data
+     * @param inputOffset  offset of plain data
+     * @param length       length of plain data
+     * @param output       buffer for encrypted data, must have room for length + TAG_SIZE bytes
+     * @param outputOffset offset for encrypted data
+     * @return length of encrypted data
+     */
+    int seal(long index, boolean last, byte[] input, int inputOffset, int length, byte[] output, int outputOffset) {
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, fileKey, spec(index));
+            cipher.updateAAD(last ? LAST : NOT_LAST);
+            return cipher.doFinal(input, inputOffset, length, output, outputOffset);
+        } catch (GeneralSecurityException ex) {
+            throw new CryptException("Error encrypting segment " + index, ex);
+        }
+    }
+
+    /**
+     * Decrypts and authenticates a segment
+     *
+     * @param index  segment index
+     * @param last   true if this is the last segment of the file
+     * @param input        encrypted data
+     * @param inputOffset  offset of encrypted data
+     * @param length       length of encrypted data
+     * @param output       buffer for plain data
+     * @param outputOffset offset for plain data
+     * @return length of plain data
+     * @throws IOException if the segment was modified
+     */
+    int open(long index, boolean last, byte[] input, int inputOffset, int length, byte[] output, int outputOffset) throws IOException {
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, fileKey, spec(index));
+            cipher.updateAAD(last ? LAST : NOT_LAST);
+            return cipher.doFinal(input, inputOffset, length, output, outputOffset);
+        } catch (AEADBadTagException ex) {
+            throw new IOException("Segment " + index + " failed authentication", ex);
+        } catch (GeneralSecurityException ex) {
+            throw new CryptException("Error decrypting segment " + index, ex);
+        }
+    }
+
+    private GCMParameterSpec spec(long index) {
+        ByteBuffer.wrap(nonce).putLong(4, index);
+        return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+    }
+
+}
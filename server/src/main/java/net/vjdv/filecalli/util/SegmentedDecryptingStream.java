@@ -0,0 +1,221 @@
+package net.vjdv.filecalli.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Future;
+
+/**
+ * Decrypts data in the v2 format one segment at a time.
+ * <p>
+ * When the channel is seekable, skipping bytes moves the channel to the segment that holds the new
+ * position, so only the segments that are actually read get decrypted. Files from the parallel threshold
+ * are decrypted ahead by the crypto workers, one chunk per worker. A file channel is read at positions kept by
+ * the stream, so several streams can read the same channel.
+ */
+public class SegmentedDecryptingStream extends InputStream {
+
+    private final ReadableByteChannel channel;
+    private final SegmentCipher cipher;
+    private final int segmentSize;
+    private final int encryptedSegmentSize;
+    private final long dataOffset;
+    private final long plainSize;
+    private final long segmentCount;
+    private final boolean parallel;
+    private final boolean shared;
+    private final Deque<Future<Block>> prefetched = new ArrayDeque<>();
+    private final byte[] encrypted;
+    private byte[] plain;
+    private long nextSegment = 0;
+    private long plainStart = 0;
+    private int plainPos = 0;
+    private int plainLength = 0;
+    private boolean lastLoaded = false;
+
+    /**
+     * @param channel     channel positioned at the first segment, after the header
+     * @param cipher      cipher for the file
+     * @param segmentSize plain size of the segments
+     * @param dataOffset  position of the first segment in the channel
+     * @param shared      true if the channel belongs to the caller and is not closed with the stream
+     * @throws IOException if the size of a seekable channel cannot be read
+     */
+    SegmentedDecryptingStream(ReadableByteChannel channel, SegmentCipher cipher, int segmentSize, long dataOffset, boolean shared) throws IOException {
+        this.channel = channel;
+        this.shared = shared;
+        this.cipher = cipher;
+        this.segmentSize = segmentSize;
+        this.encryptedSegmentSize = segmentSize + SegmentCipher.TAG_SIZE;
+        this.dataOffset = dataOffset;
+        if (channel instanceof SeekableByteChannel seekable) {
+            long encryptedSize = seekable.size() - dataOffset;
+            segmentCount = (encryptedSize + encryptedSegmentSize - 1) / encryptedSegmentSize;
+            plainSize = encryptedSize - segmentCount * SegmentCipher.TAG_SIZE;
+        } else {
+            segmentCount = -1;
+            plainSize = -1;
+        }
+        parallel = channel instanceof FileChannel && plainSize >= Configuration.getInstance().getParallelCryptoThreshold();
+        this.encrypted = parallel ? null : new byte[encryptedSegmentSize];
+        this.plain = parallel ? null : new byte[segmentSize];
+    }
+
+    /**
+     * @return plain size of the file, -1 if the channel is not seekable
+     */
+    public long plainSize() {
+        return plainSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) return -1;
+        return plain[plainPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int count = Math.min(len, plainLength - plainPos);
+        System.arraycopy(plain, plainPos, b, off, count);
+        plainPos += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) return 0;
+        if (!(channel instanceof SeekableByteChannel seekable)) return super.skip(n);
+        long position = plainStart + plainPos;
+        long target = Math.min(position + n, plainSize);
+        if (target >= plainStart && target < plainStart + plainLength) {
+            plainPos = (int) (target - plainStart);
+            return target - position;
+        }
+        //moves to the segment holding the target position
+        cancelPrefetched();
+        nextSegment = target / segmentSize;
+        if (!(channel instanceof FileChannel)) seekable.position(dataOffset + nextSegment * encryptedSegmentSize);
+        lastLoaded = false;
+        plainPos = plainLength = 0;
+        fill();
+        plainPos = (int) (target - plainStart);
+        return target - position;
+    }
+
+    @Override
+    public int available() {
+        return plainLength - plainPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        cancelPrefetched();
+        if (!shared) channel.close();
+    }
+
+    /**
+     * Makes sure there is plain data available
+     *
+     * @return false if the end of the data was reached
+     */
+    private boolean fill() throws IOException {
+        while (plainPos == plainLength) {
+            if (lastLoaded) return false;
+            if (parallel) takeBlock();
+            else loadSegment();
+        }
+        return true;
+    }
+
+    /**
+     * Reads and decrypts the next segment in the calling thread
+     */
+    private void loadSegment() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(encrypted);
+        long position = dataOffset + nextSegment * encryptedSegmentSize;
+        while (buffer.hasRemaining()) {
+            int read = channel instanceof FileChannel fileChannel ? fileChannel.read(buffer, position + buffer.position()) : channel.read(buffer);
+            if (read < 0) break;
+        }
+        int length = buffer.position();
+        if (length < SegmentCipher.TAG_SIZE) {
+            throw new IOException("Encrypted data is truncated at segment " + nextSegment);
+        }
+        //only the last segment is shorter than the others
+        boolean last = length < encryptedSegmentSize;
+        plainStart = nextSegment * segmentSize;
+        plainLength = cipher.open(nextSegment, last, encrypted, 0, length, plain, 0);
+        plainPos = 0;
+        lastLoaded = last;
+        nextSegment++;
+    }
+
+    /**
+     * Takes the next decrypted chunk, keeping the workers busy with the chunks that follow
+     */
+    private void takeBlock() throws IOException {
+        int segmentsPerChunk = Math.max(1, CryptHelper.CHUNK_SIZE / segmentSize);
+        while (prefetched.size() < Configuration.getInstance().getCryptoThreads() && nextSegment < segmentCount) {
+            long first = nextSegment;
+            int count = (int) Math.min(segmentsPerChunk, segmentCount - first);
+            SegmentCipher worker = cipher.fork();
+            prefetched.add(CryptHelper.workers().submit(() -> decryptBlock(worker, first, count)));
+            nextSegment += count;
+        }
+        if (prefetched.isEmpty()) throw new IOException("Encrypted data ends before the last segment");
+        Block block = CryptHelper.await(prefetched.poll());
+        plain = block.data();
+        plainStart = block.plainStart();
+        plainLength = block.length();
+        plainPos = 0;
+        lastLoaded = block.last();
+    }
+
+    /**
+     * Decrypts consecutive segments, runs in a crypto worker reading at its own position of the file
+     */
+    private Block decryptBlock(SegmentCipher worker, long firstSegment, int count) throws IOException {
+        FileChannel fileChannel = (FileChannel) channel;
+        ByteBuffer buffer = ByteBuffer.allocate(count * encryptedSegmentSize);
+        long position = dataOffset + firstSegment * encryptedSegmentSize;
+        while (buffer.hasRemaining()) {
+            int read = fileChannel.read(buffer, position + buffer.position());
+            if (read < 0) break;
+        }
+        byte[] data = new byte[count * segmentSize];
+        int length = 0;
+        boolean last = false;
+        for (int i = 0; i < count; i++) {
+            int offset = i * encryptedSegmentSize;
+            int segmentLength = Math.min(encryptedSegmentSize, buffer.position() - offset);
+            if (segmentLength < SegmentCipher.TAG_SIZE) {
+                throw new IOException("Encrypted data is truncated at segment " + (firstSegment + i));
+            }
+            long index = firstSegment + i;
+            last = index == segmentCount - 1;
+            length += worker.open(index, last, buffer.array(), offset, segmentLength, data, length);
+        }
+        return new Block(firstSegment * segmentSize, data, length, last);
+    }
+
+    private void cancelPrefetched() {
+        //without interruption, an interrupted read would close the shared channel
+        prefetched.forEach(future -> future.cancel(false));
+        prefetched.clear();
+    }
+
+    /**
+     * Decrypted consecutive segments
+     */
+    private record Block(long plainStart, byte[] data, int length, boolean last) {
+    }
+
+}
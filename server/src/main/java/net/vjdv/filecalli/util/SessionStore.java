@@ -0,0 +1,194 @@
+package net.vjdv.filecalli.util;
+
+import net.vjdv.filecalli.dto.SessionStatsDTO;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Concurrent map of sessions that expire after their own time to live, with a bounded number of entries.
+ * <p>
+ * Expired entries are removed by {@link #tick()}, called periodically. Entries expiring within one turn of the
+ * timer wheel are placed in the bucket of the tick of their expiration, so each tick only visits the entries of
+ * its bucket. Entries expiring later wait in a set ordered by expiration and move to the wheel when their tick
+ * comes within one turn. When the store is full, the entries closest to expire are evicted first: the buckets
+ * in order of tick, then the ordered set.
+ *
+ * @param <V> type of the sessions
+ */
+public class SessionStore<V> {
+
+    private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final List<Queue<Entry<V>>> wheel;
+    private final NavigableSet<Entry<V>> later = new ConcurrentSkipListSet<>(
+            Comparator.<Entry<V>>comparingLong(Entry::expiresAt).thenComparingLong(Entry::sequence));
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongSupplier clock;
+    private final long tickMillis;
+    private final int maxEntries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private volatile long lastTick;
+
+    /**
+     * @param maxEntries sessions kept before evicting the ones closest to expire
+     * @param tickMillis duration of a tick of the wheel
+     * @param wheelSize  buckets of the wheel
+     */
+    public SessionStore(int maxEntries, long tickMillis, int wheelSize) {
+        this(maxEntries, tickMillis, wheelSize, System::currentTimeMillis);
+    }
+
+    /**
+     * @param maxEntries sessions kept before evicting the ones closest to expire
+     * @param tickMillis duration of a tick of the wheel
+     * @param wheelSize  buckets of the wheel
+     * @param clock      current epoch millis
+     */
+    public SessionStore(int maxEntries, long tickMillis, int wheelSize, LongSupplier clock) {
+        this.clock = clock;
+        this.maxEntries = maxEntries;
+        this.tickMillis = tickMillis;
+        wheel = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new ConcurrentLinkedQueue<>());
+        }
+        lastTick = clock.getAsLong() / tickMillis;
+    }
+
+    /**
+     * Adds or replaces a session
+     *
+     * @param key       session key
+     * @param value     the session
+     * @param ttlMillis milliseconds until the session expires
+     */
+    public void put(String key, V value, long ttlMillis) {
+        var entry = new Entry<>(key, value, clock.getAsLong() + ttlMillis, sequence.incrementAndGet());
+        entries.put(key, entry);
+        long tick = Math.max(entry.expiresAt() / tickMillis, lastTick + 1);
+        if (tick - lastTick > wheel.size()) later.add(entry);
+        else wheel.get(bucket(tick)).add(entry);
+        if (entries.size() > maxEntries) evict();
+    }
+
+    /**
+     * @param key session key
+     * @return the session, null if it does not exist or expired
+     */
+    public V get(String key) {
+        var entry = entries.get(key);
+        if (entry != null && entry.expiresAt() <= clock.getAsLong()) {
+            if (entries.remove(key, entry)) expirations.incrementAndGet();
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value();
+    }
+
+    /**
+     * Removes a session
+     *
+     * @param key session key
+     */
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Removes the sessions expired since the last tick
+     */
+    public synchronized void tick() {
+        long now = clock.getAsLong();
+        long currentTick = now / tickMillis;
+        //after a pause longer than a turn every bucket is visited once
+        long first = Math.max(lastTick + 1, currentTick - wheel.size() + 1);
+        //entries expiring within the next turn move to the wheel, the expired ones to the first bucket visited
+        while (!later.isEmpty()) {
+            var entry = later.first();
+            long tick = entry.expiresAt() / tickMillis;
+            if (tick - currentTick >= wheel.size()) break;
+            later.remove(entry);
+            if (entries.get(entry.key()) == entry) wheel.get(bucket(Math.max(tick, first))).add(entry);
+        }
+        for (long tick = first; tick <= currentTick; tick++) {
+            Iterator<Entry<V>> iterator = wheel.get(bucket(tick)).iterator();
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                if (entries.get(entry.key()) != entry) {
+                    iterator.remove();
+                } else if (entry.expiresAt() <= now) {
+                    iterator.remove();
+                    if (entries.remove(entry.key(), entry)) expirations.incrementAndGet();
+                }
+            }
+        }
+        lastTick = Math.max(lastTick, currentTick);
+    }
+
+    /**
+     * @return sessions in the store, some may have expired since the last tick
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return counters of the store
+     */
+    public SessionStatsDTO stats() {
+        return new SessionStatsDTO(hits.get(), misses.get(), evictions.get(), expirations.get(), entries.size());
+    }
+
+    /**
+     * Evicts sessions until the store is within its bound, walking the wheel from the next tick and then the
+     * entries expiring later
+     */
+    private synchronized void evict() {
+        for (int i = 1; i <= wheel.size() && entries.size() > maxEntries; i++) {
+            Iterator<Entry<V>> iterator = wheel.get(bucket(lastTick + i)).iterator();
+            while (iterator.hasNext() && entries.size() > maxEntries) {
+                var entry = iterator.next();
+                iterator.remove();
+                if (entries.remove(entry.key(), entry)) evictions.incrementAndGet();
+            }
+        }
+        while (entries.size() > maxEntries) {
+            var entry = later.pollFirst();
+            if (entry == null) break;
+            if (entries.remove(entry.key(), entry)) evictions.incrementAndGet();
+        }
+    }
+
+    private int bucket(long tick) {
+        return (int) (tick % wheel.size());
+    }
+
+    /**
+     * Session and its expiration
+     *
+     * @param key       session key
+     * @param value     the session
+     * @param expiresAt epoch millis when the session expires
+     * @param sequence  order of creation, tells apart entries expiring at the same time
+     */
+    private record Entry<V>(String key, V value, long expiresAt, long sequence) {
+    }
+
+}
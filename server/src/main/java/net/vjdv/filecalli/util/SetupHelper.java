@@ -13,6 +13,9 @@ import java.util.UUID;
 @Slf4j
 public class SetupHelper {
 
+    /**
+     * Creates the tables of version 1, {@link MigrationRunner} upgrades them to the current version
+     */
     public static void createTables(Connection conn) {
         log.info("Creating tables");
         createTable(conn, "directories", """
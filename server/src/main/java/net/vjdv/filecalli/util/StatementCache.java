@@ -0,0 +1,146 @@
+package net.vjdv.filecalli.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the prepared statements of one connection, keyed by sql. When the cache is full, the least
+ * recently used statement is closed.
+ * <p>
+ * A connection is used by one thread at a time, so the cache is not synchronized, only its statistics can be
+ * read from other threads. A statement is taken out of the cache while it is in use, so a nested query with
+ * the same sql prepares its own statement.
+ */
+@Slf4j
+public class StatementCache implements AutoCloseable {
+
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param connection connection preparing the statements
+     * @param capacity   max statements kept open
+     */
+    public StatementCache(Connection connection, int capacity) {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= capacity) return false;
+                evictions.incrementAndGet();
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Runs a function with the cached statement of the sql, preparing it if needed
+     *
+     * @param sql      sql of the statement
+     * @param function function using the statement, it must close the result sets it opens
+     * @param <T>      the return type of the function
+     * @return the result of the function
+     * @throws SQLException if the statement cannot be prepared or the function fails
+     */
+    public <T> T use(String sql, StatementFunction<T> function) throws SQLException {
+        return use(sql, sql, false, function);
+    }
+
+    /**
+     * Runs a function with the cached statement of the sql, the statement returns the generated keys
+     *
+     * @param sql      sql of the insert statement
+     * @param function function using the statement
+     * @param <T>      the return type of the function
+     * @return the result of the function
+     * @throws SQLException if the statement cannot be prepared or the function fails
+     */
+    public <T> T useReturningKeys(String sql, StatementFunction<T> function) throws SQLException {
+        return use("keys:" + sql, sql, true, function);
+    }
+
+    private <T> T use(String key, String sql, boolean generatedKeys, StatementFunction<T> function) throws SQLException {
+        PreparedStatement stmt = statements.remove(key);
+        if (stmt != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            stmt = generatedKeys ? connection.prepareStatement(sql, PreparedStatement.RETURN_GENERATED_KEYS) : connection.prepareStatement(sql);
+        }
+        try {
+            return function.apply(stmt);
+        } finally {
+            giveBack(key, stmt);
+        }
+    }
+
+    /**
+     * Puts a statement back in the cache, unless a nested use already put one with the same sql
+     */
+    private void giveBack(String key, PreparedStatement stmt) {
+        try {
+            stmt.clearParameters();
+        } catch (SQLException ex) {
+            closeQuietly(stmt);
+            return;
+        }
+        if (statements.putIfAbsent(key, stmt) != null) closeQuietly(stmt);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Closes the cached statements and the connection
+     *
+     * @throws SQLException if the connection cannot be closed
+     */
+    @Override
+    public void close() throws SQLException {
+        statements.values().forEach(this::closeQuietly);
+        statements.clear();
+        connection.close();
+    }
+
+    private void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException ex) {
+            log.warn("Error closing statement", ex);
+        }
+    }
+
+    /**
+     * Function using a prepared statement
+     *
+     * @param <T> the return type
+     */
+    @FunctionalInterface
+    public interface StatementFunction<T> {
+        T apply(PreparedStatement stmt) throws SQLException;
+    }
+
+}
@@ -10,6 +10,24 @@ public interface Utils {
         return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(time).atOffset(ZoneOffset.UTC));
     }
 
+    /**
+     * @param id      file id, never reused by the database
+     * @param version version of the file content
+     * @return strong ETag of a version of a file, quoted
+     */
+    static String fileETag(int id, long version) {
+        return "\"" + id + "-" + version + "\"";
+    }
+
+    /**
+     * @param id   directory id
+     * @param ctag change tag of the directory
+     * @return ETag of a directory, changes with anything below it, quoted
+     */
+    static String directoryETag(int id, long ctag) {
+        return "\"d" + id + "-" + ctag + "\"";
+    }
+
     static String cleanFileName(String filename) {
         while (filename.contains("\\")) filename = filename.replace("\\", "/");
         while (filename.contains("/")) filename = filename.replace("/", "");
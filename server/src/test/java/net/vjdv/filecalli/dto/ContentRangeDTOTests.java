@@ -0,0 +1,64 @@
+package net.vjdv.filecalli.dto;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Content-Range headers of resumable uploads
+ */
+class ContentRangeDTOTests {
+
+    @Test
+    void rangeOfKnownTotal() {
+        var range = ContentRangeDTO.parse("bytes 0-99/1000");
+        assertEquals(new ContentRangeDTO(0, 99, 1000), range);
+        assertEquals(100, range.length());
+        assertFalse(range.isLast());
+        var last = ContentRangeDTO.parse("bytes 900-999/1000");
+        assertEquals(100, last.length());
+        assertTrue(last.isLast());
+    }
+
+    @Test
+    void rangeOfUnknownTotal() {
+        var range = ContentRangeDTO.parse("bytes 100-199/*");
+        assertEquals(new ContentRangeDTO(100, 199, -1), range);
+        assertEquals(100, range.length());
+        assertFalse(range.isLast());
+    }
+
+    @Test
+    void stateQuery() {
+        var range = ContentRangeDTO.parse("bytes */1000");
+        assertEquals(new ContentRangeDTO(-1, -1, 1000), range);
+        assertEquals(0, range.length());
+        assertFalse(range.isLast());
+        assertEquals(new ContentRangeDTO(-1, -1, -1), ContentRangeDTO.parse("bytes */*"));
+    }
+
+    @Test
+    void singleByteFile() {
+        var range = ContentRangeDTO.parse("bytes 0-0/1");
+        assertEquals(1, range.length());
+        assertTrue(range.isLast());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "0-99/1000", "bytes", "bytes 0-99", "bytes 99-0/1000", "bytes 0-1000/1000",
+            "bytes -1-5/10", "bytes a-b/10", "bytes 0-9/x", "bytes 5/10", "items 0-9/10", "bytes 0-99999999999999999999/*"})
+    void invalidHeaders(String header) {
+        assertNull(ContentRangeDTO.parse(header));
+    }
+
+    @Test
+    void missingHeader() {
+        assertNull(ContentRangeDTO.parse(null));
+    }
+
+}
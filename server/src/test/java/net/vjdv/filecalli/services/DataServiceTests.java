@@ -0,0 +1,112 @@
+package net.vjdv.filecalli.services;
+
+import net.vjdv.filecalli.util.Configuration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Transactions of the writer thread, with a database created in a temporary directory
+ */
+class DataServiceTests {
+
+    private static final String INSERT = "INSERT INTO directories (name, parent, created_at, last_modified) VALUES (?, NULL, 0, 0)";
+
+    @TempDir
+    Path tempDir;
+    private Configuration configuration;
+    private final List<DataService> databases = new ArrayList<>();
+
+    @BeforeEach
+    void createConfiguration() throws IOException {
+        Files.createDirectories(tempDir.resolve("data"));
+        var env = new MockEnvironment()
+                .withProperty("datapath", tempDir.resolve("data").toString())
+                .withProperty("temppath", tempDir.resolve("temp").toString());
+        configuration = new Configuration(env);
+    }
+
+    @AfterEach
+    void closeDatabases() {
+        databases.forEach(DataService::close);
+    }
+
+    @Test
+    void failedTaskIsRolledBackAlone() throws Exception {
+        var db = open("temp");
+        //the tasks queued while the writer is busy are committed together, each one in its savepoint
+        var busy = new CountDownLatch(1);
+        var blocker = CompletableFuture.runAsync(() -> db.inTransaction(() -> {
+            await(busy);
+            db.update(INSERT, "first");
+        }));
+        var tasks = new ArrayList<CompletableFuture<Void>>();
+        for (String name : List.of("a", "b", "fails", "c")) {
+            tasks.add(CompletableFuture.runAsync(() -> db.inTransaction(() -> {
+                db.update(INSERT, name);
+                if ("fails".equals(name)) throw new IllegalStateException("rolled back");
+            })));
+        }
+        busy.countDown();
+        blocker.get();
+        for (int i = 0; i < tasks.size(); i++) {
+            var task = tasks.get(i);
+            if (i == 2) assertThrows(Exception.class, task::get);
+            else task.get();
+        }
+        assertEquals(List.of("a", "b", "c", "first"), names(db));
+    }
+
+    @Test
+    void journalReplayReproducesCommittedRows() {
+        var db = open("temp");
+        db.update(INSERT, "a");
+        int id = db.insertAutoincrement(INSERT, "b");
+        db.inTransaction(() -> {
+            db.update("UPDATE directories SET name = ? WHERE id = ?", "renamed", id);
+            db.update(INSERT, "c");
+        });
+        assertThrows(IllegalStateException.class, () -> db.inTransaction(() -> {
+            db.update(INSERT, "rolled back");
+            throw new IllegalStateException("rolled back");
+        }));
+        //the first database is not closed, like after a crash, so the second one replays its journal
+        var replayed = open("temp2");
+        assertEquals(List.of("a", "c", "renamed"), names(replayed));
+        assertEquals(names(db), names(replayed));
+        //ids continue after the replayed rows
+        assertEquals(id + 2, replayed.insertAutoincrement(INSERT, "d"));
+    }
+
+    private DataService open(String temp) {
+        var db = new DataService(configuration, tempDir.resolve("data"), tempDir.resolve(temp), "test", true);
+        databases.add(db);
+        return db;
+    }
+
+    private static List<String> names(DataService db) {
+        return db.queryList("SELECT name FROM directories ORDER BY name", rs -> rs.getString(1));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package net.vjdv.filecalli.services;
+
+import net.vjdv.filecalli.exceptions.InsufficientSpaceException;
+import net.vjdv.filecalli.util.Configuration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Reservations of the staging space, with a quota of 100 bytes and waits of one second
+ */
+class StagingServiceTests {
+
+    @TempDir
+    Path tempDir;
+    private StagingService staging;
+
+    @BeforeEach
+    void createService() {
+        var env = new MockEnvironment()
+                .withProperty("datapath", tempDir.resolve("data").toString())
+                .withProperty("temppath", tempDir.resolve("temp").toString())
+                .withProperty("stagingquota", "100")
+                .withProperty("stagingwait", "1");
+        staging = new StagingService(new Configuration(env));
+    }
+
+    @Test
+    void fileLargerThanQuotaIsStoredAlone() throws IOException {
+        try (var file = staging.create(tempDir, 1000)) {
+            assertEquals(100, staging.stats().used());
+            //the body read beyond the reservation is admitted while no other file holds space
+            assertEquals(1000, file.track(new ByteArrayInputStream(new byte[1000])).readAllBytes().length);
+            assertEquals(1000, staging.stats().used());
+            //other files wait for the space and fail when it is not released in time
+            assertThrows(InsufficientSpaceException.class, () -> staging.create(tempDir, 10));
+        }
+        assertEquals(0, staging.stats().used());
+        try (var file = staging.create(tempDir, -1)) {
+            assertEquals(0, staging.stats().used());
+        }
+    }
+
+    @Test
+    void filesStoredTogetherShareTheQuota() throws IOException {
+        try (var first = staging.create(tempDir, 60); var second = staging.create(tempDir, 40)) {
+            assertEquals(100, staging.stats().used());
+            //a file growing while another holds space waits for it
+            var body = second.track(new ByteArrayInputStream(new byte[50]));
+            assertThrows(InsufficientSpaceException.class, body::readAllBytes);
+            first.close();
+            assertEquals(40, staging.stats().used());
+            assertEquals(50, second.track(new ByteArrayInputStream(new byte[50])).readAllBytes().length);
+        }
+        assertEquals(0, staging.stats().used());
+    }
+
+    @Test
+    void reservationsShareTheQuotaWithFiles() throws IOException {
+        try (var file = staging.create(tempDir, 70)) {
+            try (var range = staging.reserve(30)) {
+                assertEquals(100, staging.stats().used());
+                assertThrows(InsufficientSpaceException.class, () -> staging.reserve(1));
+                assertEquals(30, range.track(new ByteArrayInputStream(new byte[30])).readAllBytes().length);
+            }
+            assertEquals(70, staging.stats().used());
+            //only staging files are counted as files
+            assertEquals(1, staging.stats().files());
+        }
+        assertEquals(0, staging.stats().used());
+    }
+
+}
@@ -0,0 +1,151 @@
+package net.vjdv.filecalli.services;
+
+import net.vjdv.filecalli.dto.SessionDTO;
+import net.vjdv.filecalli.enums.Role;
+import net.vjdv.filecalli.exceptions.StorageException;
+import net.vjdv.filecalli.util.Configuration;
+import net.vjdv.filecalli.util.DecryptedFileResource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.env.MockEnvironment;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * References to the blobs shared by copies, with a database set up with one user in a temporary directory
+ */
+class StorageServiceTests {
+
+    @TempDir
+    Path tempDir;
+    private DataService db;
+    private StorageService storage;
+    private SessionDTO session;
+
+    @BeforeEach
+    void createServices() throws IOException {
+        Path dataPath = Files.createDirectories(tempDir.resolve("data"));
+        Files.writeString(dataPath.resolve("setup.yml"), """
+                users:
+                  - id: user1
+                    name: User 1
+                    pass: secret
+                    role: admin
+                    webdav: yes
+                    webdavTokens: []
+                """);
+        var env = new MockEnvironment()
+                .withProperty("datapath", dataPath.toString())
+                .withProperty("temppath", tempDir.resolve("temp").toString());
+        var configuration = new Configuration(env);
+        db = new DataService(configuration);
+        storage = new StorageService(new ShardService(db, configuration), new StagingService(configuration), configuration);
+        int rootDir = db.queryOne("SELECT root_directory FROM users WHERE id = ?", rs -> rs.getInt(1), "user1").orElseThrow();
+        session = new SessionDTO("user1", "User 1", Role.ADMIN, rootDir, Long.MAX_VALUE, key(), key());
+    }
+
+    @AfterEach
+    void closeDatabase() {
+        db.close();
+    }
+
+    @Test
+    void publishKeepsTheBlobSharedWithACopy() throws IOException {
+        store("/webdav/a.txt", "first");
+        storage.copyFile("/webdav/a.txt", "/webdav/b.txt", session);
+        int shared = blobOf("/webdav/a.txt");
+        assertEquals(shared, blobOf("/webdav/b.txt"));
+        assertEquals(2, refs(shared));
+        //the new content gets its own blob, the copy keeps the old one
+        store("/webdav/a.txt", "second");
+        assertNotEquals(shared, blobOf("/webdav/a.txt"));
+        assertEquals(shared, blobOf("/webdav/b.txt"));
+        assertEquals(1, refs(shared));
+        assertTrue(Files.exists(StorageService.blobPath(db.getDataPath(), shared)));
+        assertEquals("second", read("/webdav/a.txt"));
+        assertEquals("first", read("/webdav/b.txt"));
+        //replacing the copy too leaves the old blob unreferenced
+        store("/webdav/b.txt", "third");
+        assertEquals(0, refs(shared));
+        assertFalse(Files.exists(StorageService.blobPath(db.getDataPath(), shared)));
+    }
+
+    @Test
+    void deleteKeepsTheBlobSharedWithACopy() throws IOException {
+        store("/webdav/a.txt", "content");
+        storage.copyFile("/webdav/a.txt", "/webdav/b.txt", session);
+        int shared = blobOf("/webdav/a.txt");
+        storage.delete("/webdav/a.txt", session.rootDir());
+        assertEquals(1, refs(shared));
+        assertTrue(Files.exists(StorageService.blobPath(db.getDataPath(), shared)));
+        assertEquals("content", read("/webdav/b.txt"));
+        storage.delete("/webdav/b.txt", session.rootDir());
+        assertEquals(0, refs(shared));
+        assertFalse(Files.exists(StorageService.blobPath(db.getDataPath(), shared)));
+    }
+
+    @Test
+    void copyToAnotherKeyIsPublishedFromStaging() throws IOException {
+        store("/a.txt", "content");
+        storage.copyFile("/a.txt", "/webdav/a.txt", session);
+        int source = blobOf("/a.txt");
+        int copy = blobOf("/webdav/a.txt");
+        assertNotEquals(source, copy);
+        assertEquals(1, refs(source));
+        assertEquals(1, refs(copy));
+        assertEquals("content", read("/webdav/a.txt"));
+        try (var staging = Files.list(db.getDataPath().resolve("staging"))) {
+            assertEquals(0, staging.count());
+        }
+        //a copy that fails leaves no blob behind
+        long blobs = db.queryOne("SELECT COUNT(1) FROM blobs", rs -> rs.getLong(1)).orElseThrow();
+        Files.delete(StorageService.blobPath(db.getDataPath(), source));
+        assertThrows(StorageException.class, () -> storage.copyFile("/a.txt", "/webdav/b.txt", session));
+        assertEquals(blobs, db.queryOne("SELECT COUNT(1) FROM blobs", rs -> rs.getLong(1)).orElseThrow());
+        assertFalse(storage.resolveFile("/webdav/b.txt", session.rootDir()).exists());
+    }
+
+    private void store(String path, String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        storage.store(path, "text/plain", bytes.length, new ByteArrayInputStream(bytes), session);
+    }
+
+    private String read(String path) throws IOException {
+        var file = storage.retrieve(path, session);
+        try (var resource = (DecryptedFileResource) file.resource(); var input = resource.getInputStream()) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private int blobOf(String path) {
+        return storage.resolveFile(path, session.rootDir()).blobId();
+    }
+
+    /**
+     * @return references of a blob, 0 if its row was deleted
+     */
+    private int refs(int blobId) {
+        return db.queryOne("SELECT refs FROM blobs WHERE id = ?", rs -> rs.getInt(1), blobId).orElse(0);
+    }
+
+    private static SecretKeySpec key() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+}
@@ -0,0 +1,86 @@
+package net.vjdv.filecalli.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Preconditions of GET and of requests changing a resource
+ */
+class ConditionalRequestsTests {
+
+    private static final String ETAG = "\"12-3\"";
+    private static final long MODIFIED = 1_700_000_000_500L;
+
+    @Test
+    void ifNoneMatchOfGet() {
+        assertTrue(ConditionalRequests.notModified(request("If-None-Match", ETAG), ETAG, MODIFIED));
+        assertTrue(ConditionalRequests.notModified(request("If-None-Match", "\"1-1\", W/" + ETAG), ETAG, MODIFIED));
+        assertTrue(ConditionalRequests.notModified(request("If-None-Match", "*"), ETAG, MODIFIED));
+        assertFalse(ConditionalRequests.notModified(request("If-None-Match", "\"12-2\""), ETAG, MODIFIED));
+        //If-Modified-Since is ignored when If-None-Match is present
+        var request = request("If-None-Match", "\"12-2\"");
+        request.addHeader("If-Modified-Since", date(MODIFIED + 60_000));
+        assertFalse(ConditionalRequests.notModified(request, ETAG, MODIFIED));
+    }
+
+    @Test
+    void ifModifiedSinceOfGet() {
+        //dates have seconds, the milliseconds of the resource are ignored
+        assertTrue(ConditionalRequests.notModified(request("If-Modified-Since", date(MODIFIED)), ETAG, MODIFIED));
+        assertTrue(ConditionalRequests.notModified(request("If-Modified-Since", date(MODIFIED + 60_000)), ETAG, MODIFIED));
+        assertFalse(ConditionalRequests.notModified(request("If-Modified-Since", date(MODIFIED - 1000)), ETAG, MODIFIED));
+        assertFalse(ConditionalRequests.notModified(request("If-Modified-Since", "not a date"), ETAG, MODIFIED));
+        assertFalse(ConditionalRequests.notModified(new MockHttpServletRequest(), ETAG, MODIFIED));
+    }
+
+    @Test
+    void ifMatchOfChange() {
+        assertFalse(ConditionalRequests.preconditionFailed(request("If-Match", ETAG), ETAG, MODIFIED));
+        assertFalse(ConditionalRequests.preconditionFailed(request("If-Match", "\"1-1\", " + ETAG), ETAG, MODIFIED));
+        assertFalse(ConditionalRequests.preconditionFailed(request("If-Match", "*"), ETAG, MODIFIED));
+        assertTrue(ConditionalRequests.preconditionFailed(request("If-Match", "\"12-2\""), ETAG, MODIFIED));
+        //If-Match uses the strong comparison
+        assertTrue(ConditionalRequests.preconditionFailed(request("If-Match", "W/" + ETAG), ETAG, MODIFIED));
+        //nothing matches a resource that does not exist
+        assertTrue(ConditionalRequests.preconditionFailed(request("If-Match", "*"), null, 0));
+    }
+
+    @Test
+    void ifUnmodifiedSinceOfChange() {
+        assertFalse(ConditionalRequests.preconditionFailed(request("If-Unmodified-Since", date(MODIFIED)), ETAG, MODIFIED));
+        assertTrue(ConditionalRequests.preconditionFailed(request("If-Unmodified-Since", date(MODIFIED - 1000)), ETAG, MODIFIED));
+        //ignored when the resource does not exist or If-Match is present
+        assertFalse(ConditionalRequests.preconditionFailed(request("If-Unmodified-Since", date(MODIFIED - 1000)), null, 0));
+        var request = request("If-Match", ETAG);
+        request.addHeader("If-Unmodified-Since", date(MODIFIED - 1000));
+        assertFalse(ConditionalRequests.preconditionFailed(request, ETAG, MODIFIED));
+    }
+
+    @Test
+    void ifNoneMatchOfChange() {
+        //creating a resource only if it does not exist
+        assertFalse(ConditionalRequests.preconditionFailed(request("If-None-Match", "*"), null, 0));
+        assertTrue(ConditionalRequests.preconditionFailed(request("If-None-Match", "*"), ETAG, MODIFIED));
+        assertTrue(ConditionalRequests.preconditionFailed(request("If-None-Match", "W/" + ETAG), ETAG, MODIFIED));
+        assertFalse(ConditionalRequests.preconditionFailed(request("If-None-Match", "\"12-2\""), ETAG, MODIFIED));
+        assertFalse(ConditionalRequests.preconditionFailed(new MockHttpServletRequest(), ETAG, MODIFIED));
+    }
+
+    private static MockHttpServletRequest request(String header, String value) {
+        var request = new MockHttpServletRequest();
+        request.addHeader(header, value);
+        return request;
+    }
+
+    private static String date(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC));
+    }
+
+}
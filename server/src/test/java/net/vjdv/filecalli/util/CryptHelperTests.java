@@ -0,0 +1,203 @@
+package net.vjdv.filecalli.util;
+
+import net.vjdv.filecalli.exceptions.CryptException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.mock.env.MockEnvironment;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Round trips and tampering of the encrypted formats
+ */
+class CryptHelperTests {
+
+    private static final int SEGMENT = CryptHelper.SEGMENT_SIZE;
+    private static final int HEADER = 28;
+    private static final SecretKey KEY = new SecretKeySpec(new byte[16], "AES");
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeAll
+    static void configure() {
+        //large files are encrypted and decrypted by the workers from 1 MB
+        new Configuration(new MockEnvironment().withProperty("parallelcryptothreshold", "1048576").withProperty("cryptothreads", "2"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 3 * 1024 * 1024 + 7})
+    void roundTrip(int size) throws IOException {
+        byte[] plain = random(size);
+        Path file = encrypt(plain);
+        assertEquals(HEADER + size + (size / SEGMENT + 1) * 16L, Files.size(file));
+        assertArrayEquals(plain, readAll(file));
+    }
+
+    @Test
+    void missingLastSegmentIsDetected() throws IOException {
+        //a file of whole segments ends with an empty segment, without it the file looks complete
+        Path file = encrypt(random(2 * SEGMENT));
+        truncate(file, 16);
+        assertThrows(IOException.class, () -> readAll(file));
+        Path longer = encrypt(random(2 * SEGMENT + 500));
+        truncate(longer, 500 + 16);
+        assertThrows(IOException.class, () -> readAll(longer));
+    }
+
+    @Test
+    void flippedByteIsDetected() throws IOException {
+        Path file = encrypt(random(2 * SEGMENT + 500));
+        byte[] encrypted = Files.readAllBytes(file);
+        encrypted[HEADER + SEGMENT + 100] ^= 1;
+        Files.write(file, encrypted);
+        assertThrows(IOException.class, () -> readAll(file));
+    }
+
+    @Test
+    void skipLandsInsideSegment() throws IOException {
+        byte[] plain = random(5 * SEGMENT + 123);
+        Path file = encrypt(plain);
+        try (InputStream input = CryptHelper.decryptingStream(file, KEY)) {
+            assertEquals(100, input.read(new byte[100]));
+            long target = 3L * SEGMENT + 777;
+            assertEquals(target - 100, input.skip(target - 100));
+            assertArrayEquals(Arrays.copyOfRange(plain, (int) target, (int) target + 5000), input.readNBytes(5000));
+            //skipping inside the segment already decrypted
+            assertEquals(10, input.skip(10));
+            assertEquals(plain[(int) target + 5010] & 0xff, input.read());
+            //skipping past the end stops at the end
+            assertEquals(plain.length - target - 5011, input.skip(Long.MAX_VALUE / 2));
+            assertEquals(-1, input.read());
+        }
+    }
+
+    @Test
+    void v1FileDecrypts() throws Exception {
+        byte[] plain = random(100_000);
+        byte[] iv = random(16);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, KEY, new IvParameterSpec(iv));
+        Path file = tempDir.resolve("v1");
+        try (var output = Files.newOutputStream(file)) {
+            output.write(iv);
+            output.write(cipher.doFinal(plain));
+        }
+        assertArrayEquals(plain, readAll(file));
+        try (InputStream input = CryptHelper.decryptingStream(file, KEY)) {
+            assertEquals(70_000, input.skip(70_000));
+            assertArrayEquals(Arrays.copyOfRange(plain, 70_000, 70_100), input.readNBytes(100));
+        }
+    }
+
+    @Test
+    void appendedSegmentsDecryptLikeOneFile() throws IOException {
+        byte[] plain = random(3 * SEGMENT + 100);
+        Path file = tempDir.resolve("appended");
+        //the incomplete segment at the end of a part is not written
+        assertEquals(SEGMENT, append(plain, 0, SEGMENT + 10, file, 0));
+        assertEquals(plain.length - SEGMENT, append(plain, SEGMENT, plain.length - SEGMENT, file, 1));
+        assertArrayEquals(plain, readAll(file));
+        //a file of whole segments ends with an empty final segment
+        byte[] whole = random(2 * SEGMENT);
+        Path wholeFile = tempDir.resolve("whole");
+        assertEquals(SEGMENT, append(whole, 0, SEGMENT, wholeFile, 0));
+        assertEquals(SEGMENT, append(whole, SEGMENT, SEGMENT, wholeFile, 1));
+        assertArrayEquals(whole, readAll(wholeFile));
+    }
+
+    @Test
+    void finalSegmentIsSealedOnlyAtTheEnd() throws IOException {
+        byte[] plain = random(2 * SEGMENT + 100);
+        Path file = tempDir.resolve("short");
+        //the body ends before the file, the incomplete segment is dropped instead of sealed as final
+        var cut = new ByteArrayInputStream(plain, 0, SEGMENT + 50);
+        assertEquals(SEGMENT, CryptHelper.appendEncrypted(cut, file, KEY, 0, plain.length, plain.length));
+        assertEquals(HEADER + SEGMENT + 16, Files.size(file));
+        //the input is not read past the length of the range
+        var longer = new ByteArrayInputStream(plain, SEGMENT, plain.length - SEGMENT);
+        assertEquals(SEGMENT, CryptHelper.appendEncrypted(longer, file, KEY, 1, SEGMENT + 50, plain.length));
+        assertEquals(50, longer.available());
+        assertEquals(plain.length, 2 * SEGMENT + append(plain, 2 * SEGMENT, 100, file, 2));
+        assertArrayEquals(plain, readAll(file));
+    }
+
+    @Test
+    void writtenSegmentsAreNotSealedAgain() throws IOException {
+        byte[] plain = random(4 * SEGMENT + 100);
+        Path file = tempDir.resolve("crash");
+        assertEquals(3 * SEGMENT, append(plain, 0, 3 * SEGMENT + 10, file, 0));
+        //only one segment was acknowledged before a crash, the others are kept
+        assertThrows(CryptException.class, () -> append(plain, SEGMENT, plain.length - SEGMENT, file, 1));
+        assertEquals(3, CryptHelper.appendableSegments(file, KEY, 1));
+        assertEquals(plain.length - 3 * SEGMENT, append(plain, 3 * SEGMENT, plain.length - 3 * SEGMENT, file, 3));
+        assertArrayEquals(plain, readAll(file));
+        //a final segment, an incomplete segment or a segment that does not decrypt cannot be continued
+        assertEquals(-1, CryptHelper.appendableSegments(file, KEY, 3));
+        Path torn = tempDir.resolve("torn");
+        append(plain, 0, 2 * SEGMENT, torn, 0);
+        assertEquals(2, CryptHelper.appendableSegments(torn, KEY, 0));
+        truncate(torn, 100);
+        assertEquals(-1, CryptHelper.appendableSegments(torn, KEY, 0));
+        Path flipped = tempDir.resolve("flipped");
+        append(plain, 0, 2 * SEGMENT, flipped, 0);
+        byte[] encrypted = Files.readAllBytes(flipped);
+        encrypted[HEADER + SEGMENT + 100] ^= 1;
+        Files.write(flipped, encrypted);
+        assertEquals(2, CryptHelper.appendableSegments(flipped, KEY, 2));
+        assertEquals(-1, CryptHelper.appendableSegments(flipped, KEY, 1));
+        //starting again gives a new salt, the old nonces are not used with it
+        byte[] header = Arrays.copyOf(Files.readAllBytes(torn), HEADER);
+        append(plain, 0, SEGMENT, torn, 0);
+        assertFalse(Arrays.equals(header, Arrays.copyOf(Files.readAllBytes(torn), HEADER)));
+    }
+
+    private static long append(byte[] plain, int offset, int length, Path file, long segments) throws IOException {
+        return CryptHelper.appendEncrypted(new ByteArrayInputStream(plain, offset, length), file, KEY, segments, length, plain.length);
+    }
+
+    private Path encrypt(byte[] plain) throws IOException {
+        Path file = Files.createTempFile(tempDir, "enc", ".bin");
+        assertEquals(plain.length, CryptHelper.encrypt(new ByteArrayInputStream(plain), file, KEY));
+        return file;
+    }
+
+    private static byte[] readAll(Path file) throws IOException {
+        try (InputStream input = CryptHelper.decryptingStream(file, KEY)) {
+            return input.readAllBytes();
+        }
+    }
+
+    private static void truncate(Path file, long bytes) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - bytes);
+        }
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+}
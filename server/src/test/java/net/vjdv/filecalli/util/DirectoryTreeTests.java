@@ -0,0 +1,155 @@
+package net.vjdv.filecalli.util;
+
+import net.vjdv.filecalli.dto.DirDataDTO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Path resolution through the directory cache over a migrated database, the way StorageService resolves paths
+ */
+class DirectoryTreeTests {
+
+    private static final String DIR_LOOKUP = "SELECT id, created_at, last_modified FROM directories WHERE name = ? AND parent = ?";
+    private static final String FILE_LOOKUP = "SELECT id, name, mime, size, created_at, last_modified, blob_id FROM files WHERE name = ? AND directory_id = ?";
+
+    private Connection conn;
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @BeforeEach
+    void createDatabase() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+        SetupHelper.createTables(conn);
+        MigrationRunner.migrate(conn);
+        //  /a/b and /c
+        update("INSERT INTO directories (id, name, created_at, last_modified) VALUES (1, '/', 0, 0)");
+        update("INSERT INTO directories (id, name, parent, created_at, last_modified) VALUES (2, 'a', 1, 0, 0)");
+        update("INSERT INTO directories (id, name, parent, created_at, last_modified) VALUES (3, 'b', 2, 0, 0)");
+        update("INSERT INTO directories (id, name, parent, created_at, last_modified) VALUES (4, 'c', 1, 0, 0)");
+    }
+
+    @AfterEach
+    void closeDatabase() throws SQLException {
+        conn.close();
+    }
+
+    @Test
+    void cachedPathIsResolvedWithoutQueries() {
+        var tree = new DirectoryTree(100);
+        assertEquals(3, resolve(tree, "a", "b").id());
+        assertEquals(2, loads.get());
+        assertEquals(3, resolve(tree, "a", "b").id());
+        assertEquals(2, loads.get());
+        assertEquals(3, tree.size());
+    }
+
+    @Test
+    void moveIsSeenAfterInvalidation() {
+        var tree = new DirectoryTree(100);
+        assertEquals(3, resolve(tree, "a", "b").id());
+        assertEquals(0, resolve(tree, "c", "b").id());
+        update("UPDATE directories SET parent = 4 WHERE id = 3");
+        tree.invalidate(1, "/a/b");
+        assertEquals(0, resolve(tree, "a", "b").id());
+        var moved = resolve(tree, "c", "b");
+        assertEquals(3, moved.id());
+        assertEquals("/c/b", moved.path());
+        assertEquals(2, resolve(tree, "a").id());
+    }
+
+    @Test
+    void deleteIsSeenAfterInvalidation() {
+        var tree = new DirectoryTree(100);
+        assertEquals(3, resolve(tree, "a", "b").id());
+        update("DELETE FROM directories WHERE id IN (2, 3)");
+        tree.invalidate(1, "/a");
+        assertEquals(0, resolve(tree, "a").id());
+        assertEquals(0, resolve(tree, "a", "b").id());
+        assertEquals(1, tree.size());
+    }
+
+    @Test
+    void lookupRacingChangeIsNotCached() {
+        var tree = new DirectoryTree(100);
+        //the directory is renamed while the lookup reads it
+        BiFunction<DirDataDTO, String, DirDataDTO> racing = (parent, name) -> {
+            var dir = loadDir(parent, name);
+            update("UPDATE directories SET name = 'z' WHERE id = 2");
+            tree.invalidate(1, "/a");
+            return dir;
+        };
+        assertEquals(2, tree.resolve(1, new String[]{"a"}, this::loadRoot, racing, true).id());
+        assertEquals(0, resolve(tree, "a").id());
+        assertEquals(2, resolve(tree, "z").id());
+    }
+
+    @Test
+    void fullCacheStartsAgain() {
+        var tree = new DirectoryTree(2);
+        assertEquals(3, resolve(tree, "a", "b").id());
+        assertTrue(tree.size() <= 2);
+        assertEquals(4, resolve(tree, "c").id());
+        assertEquals(3, resolve(tree, "a", "b").id());
+    }
+
+    @Test
+    void lookupsUseIndexes() {
+        assertTrue(plan(DIR_LOOKUP).contains("COVERING INDEX idx_directories_parent_name"), plan(DIR_LOOKUP));
+        assertTrue(plan(FILE_LOOKUP).contains("INDEX idx_files_directory_name"), plan(FILE_LOOKUP));
+    }
+
+    private DirDataDTO resolve(DirectoryTree tree, String... names) {
+        return tree.resolve(1, names, this::loadRoot, this::loadDir, true);
+    }
+
+    private DirDataDTO loadRoot(int rootDir) {
+        return new DirDataDTO(rootDir, "/", "/", 0, 0, 0);
+    }
+
+    private DirDataDTO loadDir(DirDataDTO parent, String name) {
+        loads.incrementAndGet();
+        String path = "/".equals(parent.path()) ? "/" + name : parent.path() + "/" + name;
+        try (var ps = conn.prepareStatement(DIR_LOOKUP)) {
+            ps.setString(1, name);
+            ps.setInt(2, parent.id());
+            try (var rs = ps.executeQuery()) {
+                int id = rs.next() ? rs.getInt(1) : 0;
+                return new DirDataDTO(id, name, path, 0, 0, parent.id());
+            }
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private String plan(String sql) {
+        try (var ps = conn.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            ps.setString(1, "x");
+            ps.setInt(2, 1);
+            var plan = new StringBuilder();
+            try (var rs = ps.executeQuery()) {
+                while (rs.next()) plan.append(rs.getString("detail")).append('\n');
+            }
+            return plan.toString();
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void update(String sql) {
+        try (var st = conn.createStatement()) {
+            st.executeUpdate(sql);
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package net.vjdv.filecalli.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Latency of the path lookups against the size of the tables, before and after the index migration.
+ * Run with {@code mvn test -Dtest=LookupBenchmarkTests -Dbenchmark=true}, the sizes can be changed with
+ * {@code -Dbenchmark.sizes=10000,100000}.
+ */
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class LookupBenchmarkTests {
+
+    private static final int FILES_PER_DIRECTORY = 100;
+    private static final int LOOKUPS = 200;
+    private static final String DIR_LOOKUP = "SELECT id, created_at, last_modified FROM directories WHERE name = ? AND parent = ?";
+    private static final String FILE_LOOKUP = "SELECT id, name, mime, size, created_at, last_modified, blob_id FROM files WHERE name = ? AND directory_id = ?";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void lookupLatency() throws SQLException {
+        int[] sizes = Arrays.stream(System.getProperty("benchmark.sizes", "10000,100000,1000000").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+        log.info(String.format("%12s %16s %16s", "files", "before (us)", "after (us)"));
+        for (int size : sizes) {
+            Path db = tempDir.resolve("bench-" + size + ".sqlite");
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db)) {
+                SetupHelper.createTables(conn);
+                MigrationRunner.migrate(conn, 2);
+                int directories = populate(conn, size);
+                double before = measure(conn, directories);
+                MigrationRunner.migrate(conn);
+                assertEquals(MigrationRunner.latestVersion(), MigrationRunner.readVersion(conn));
+                double after = measure(conn, directories);
+                log.info(String.format("%12d %16.1f %16.1f", size, before, after));
+            }
+        }
+    }
+
+    /**
+     * Creates directories under the root, each one with the same number of files
+     *
+     * @return number of directories created
+     */
+    private int populate(Connection conn, int files) throws SQLException {
+        int directories = Math.max(1, files / FILES_PER_DIRECTORY);
+        conn.setAutoCommit(false);
+        try (var root = conn.prepareStatement("INSERT INTO directories (id, name, created_at, last_modified) VALUES (1, '/', 0, 0)");
+             var dir = conn.prepareStatement("INSERT INTO directories (id, name, parent, created_at, last_modified) VALUES (?, ?, 1, 0, 0)");
+             var file = conn.prepareStatement("INSERT INTO files (name, mime, size, created_at, last_modified, directory_id, blob_id) VALUES (?, 'text/plain', 1, 0, 0, ?, 0)")) {
+            root.execute();
+            for (int d = 0; d < directories; d++) {
+                dir.setInt(1, d + 2);
+                dir.setString(2, "dir" + d);
+                dir.executeUpdate();
+                for (int f = 0; f < FILES_PER_DIRECTORY; f++) {
+                    file.setString(1, "file" + f);
+                    file.setInt(2, d + 2);
+                    file.addBatch();
+                }
+                file.executeBatch();
+            }
+        }
+        conn.commit();
+        conn.setAutoCommit(true);
+        return directories;
+    }
+
+    /**
+     * Resolves random files the way StorageService does, one directory lookup and one file lookup
+     *
+     * @return average microseconds per resolved file
+     */
+    private double measure(Connection conn, int directories) throws SQLException {
+        Random random = new Random(42);
+        try (var dirStmt = conn.prepareStatement(DIR_LOOKUP); var fileStmt = conn.prepareStatement(FILE_LOOKUP)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                dirStmt.setString(1, "dir" + random.nextInt(directories));
+                dirStmt.setInt(2, 1);
+                int dirId;
+                try (var rs = dirStmt.executeQuery()) {
+                    rs.next();
+                    dirId = rs.getInt(1);
+                }
+                fileStmt.setString(1, "file" + random.nextInt(FILES_PER_DIRECTORY));
+                fileStmt.setInt(2, dirId);
+                try (var rs = fileStmt.executeQuery()) {
+                    assertTrue(rs.next());
+                }
+            }
+            return (System.nanoTime() - start) / 1000.0 / LOOKUPS;
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package net.vjdv.filecalli.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Migrations of a database created with the version 1 tables and rows written by that version
+ */
+class MigrationRunnerTests {
+
+    @Test
+    void baselineIsMigratedToTheLatestVersion() throws SQLException {
+        try (var conn = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            SetupHelper.createTables(conn);
+            execute(conn, "INSERT INTO directories (id, name, parent, created_at, last_modified) VALUES (1, '/', NULL, 10, 20)");
+            execute(conn, "INSERT INTO files (id, name, mime, size, created_at, last_modified, directory_id) VALUES (7, 'a.txt', 'text/plain', 5, 30, 40, 1)");
+            assertEquals(1, MigrationRunner.readVersion(conn));
+            MigrationRunner.migrate(conn);
+            assertEquals(MigrationRunner.latestVersion(), MigrationRunner.readVersion(conn));
+            //existing files keep their id as blob, so the path of the encrypted file does not change
+            assertEquals("7|1|1", query(conn, "SELECT b.id || '|' || b.refs || '|' || f.version FROM files f JOIN blobs b ON b.id = f.blob_id"));
+            assertEquals("0", query(conn, "SELECT ctag FROM directories WHERE id = 1"));
+            assertEquals("0", query(conn, "SELECT COUNT(1) FROM changes"));
+            assertEquals("0", query(conn, "SELECT COUNT(1) FROM uploads"));
+            assertEquals("idx_directories_parent_name", query(conn, "SELECT name FROM sqlite_master WHERE type = 'index' AND tbl_name = 'directories'"));
+            //running again applies nothing
+            MigrationRunner.migrate(conn);
+            assertEquals(MigrationRunner.latestVersion(), MigrationRunner.readVersion(conn));
+        }
+    }
+
+    @Test
+    void migrationsStopAtTheTargetVersion() throws SQLException {
+        try (var conn = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            SetupHelper.createTables(conn);
+            MigrationRunner.migrate(conn, 3);
+            assertEquals(3, MigrationRunner.readVersion(conn));
+            assertEquals("0", query(conn, "SELECT COUNT(1) FROM sqlite_master WHERE name = 'changes'"));
+            MigrationRunner.migrate(conn);
+            assertEquals("1", query(conn, "SELECT COUNT(1) FROM sqlite_master WHERE name = 'changes'"));
+        }
+    }
+
+    private static void execute(Connection conn, String sql) throws SQLException {
+        try (var stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private static String query(Connection conn, String sql) throws SQLException {
+        try (var stmt = conn.createStatement(); var rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+
+}
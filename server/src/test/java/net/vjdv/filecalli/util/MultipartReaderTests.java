@@ -0,0 +1,172 @@
+package net.vjdv.filecalli.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Parts of multipart/form-data bodies, read from streams returning the body in pieces of any size
+ */
+class MultipartReaderTests {
+
+    private static final String BOUNDARY = "----fc7MA4YWxkTrZu0gW";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Test
+    void boundaryOfContentType() {
+        assertEquals("abc", MultipartReader.boundary("multipart/form-data; boundary=abc"));
+        assertEquals("a b", MultipartReader.boundary("Multipart/Form-Data; charset=utf-8; boundary=\"a b\""));
+        assertNull(MultipartReader.boundary("application/octet-stream; boundary=abc"));
+        assertNull(MultipartReader.boundary("multipart/form-data"));
+        assertNull(MultipartReader.boundary(null));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, BUFFER_SIZE - 30, BUFFER_SIZE - 10, BUFFER_SIZE - 1, BUFFER_SIZE, BUFFER_SIZE + 5, 3 * BUFFER_SIZE + 17})
+    void delimiterSplitAcrossFills(int size) throws IOException {
+        byte[] content = random(size);
+        byte[] body = body(part("file", "a.bin", content), part("field", null, "value".getBytes(StandardCharsets.UTF_8)));
+        for (int piece : new int[]{1, 7, 4096, Integer.MAX_VALUE}) {
+            try (var reader = new MultipartReader(pieces(body, piece), BOUNDARY)) {
+                var file = reader.next();
+                assertEquals("file", file.name());
+                assertEquals("a.bin", file.filename());
+                assertEquals("application/octet-stream", file.contentType());
+                assertArrayEquals(content, file.content().readAllBytes());
+                var field = reader.next();
+                assertEquals("field", field.name());
+                assertNull(field.filename());
+                assertEquals("value", new String(field.content().readAllBytes(), StandardCharsets.UTF_8));
+                assertNull(reader.next());
+                assertNull(reader.next());
+            }
+        }
+    }
+
+    @Test
+    void preambleAndLeadingLineBreakAreSkipped() throws IOException {
+        byte[] parts = body(part("a", null, "1".getBytes(StandardCharsets.UTF_8)));
+        for (String preamble : new String[]{"\r\n", "This is a preamble\r\n", "\r\n\r\n"}) {
+            byte[] body = concat(preamble.getBytes(StandardCharsets.UTF_8), parts);
+            try (var reader = new MultipartReader(new ByteArrayInputStream(body), BOUNDARY)) {
+                var part = reader.next();
+                assertEquals("a", part.name());
+                assertEquals("1", new String(part.content().readAllBytes(), StandardCharsets.UTF_8));
+                assertNull(reader.next());
+            }
+        }
+    }
+
+    @Test
+    void severalPartsInOneBody() throws IOException {
+        byte[][] contents = new byte[5][];
+        byte[][] parts = new byte[5][];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = random(i * 1000);
+            parts[i] = part("f" + i, "f" + i + ".bin", contents[i]);
+        }
+        try (var reader = new MultipartReader(pieces(body(parts), 333), BOUNDARY)) {
+            for (int i = 0; i < contents.length; i++) {
+                var part = reader.next();
+                assertEquals("f" + i, part.name());
+                assertArrayEquals(contents[i], part.content().readAllBytes());
+            }
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void partNotFullyReadIsSkipped() throws IOException {
+        byte[] first = random(2 * BUFFER_SIZE);
+        byte[] second = random(100);
+        byte[] body = body(part("a", "a.bin", first), part("b", "b.bin", second));
+        try (var reader = new MultipartReader(pieces(body, 1000), BOUNDARY)) {
+            var part = reader.next();
+            assertEquals(10, part.content().read(new byte[10]));
+            part = reader.next();
+            assertEquals("b", part.name());
+            assertArrayEquals(second, part.content().readAllBytes());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void missingClosingBoundaryFails() throws IOException {
+        byte[] body = concat(("--" + BOUNDARY + "\r\n").getBytes(StandardCharsets.ISO_8859_1),
+                "Content-Disposition: form-data; name=\"a\"\r\n\r\nsome content".getBytes(StandardCharsets.UTF_8));
+        try (var reader = new MultipartReader(new ByteArrayInputStream(body), BOUNDARY)) {
+            var part = reader.next();
+            assertThrows(IOException.class, () -> part.content().readAllBytes());
+        }
+        //the last part ends but the body is cut before the closing --
+        byte[] cut = concat(part("a", null, "x".getBytes(StandardCharsets.UTF_8)), ("--" + BOUNDARY).getBytes(StandardCharsets.ISO_8859_1));
+        try (var reader = new MultipartReader(new ByteArrayInputStream(cut), BOUNDARY)) {
+            reader.next();
+            assertThrows(IOException.class, reader::next);
+        }
+        //a body without any boundary
+        try (var reader = new MultipartReader(new ByteArrayInputStream("no parts".getBytes(StandardCharsets.UTF_8)), BOUNDARY)) {
+            assertThrows(IOException.class, reader::next);
+        }
+    }
+
+    /**
+     * @return the boundary line, headers and content of a part, the line break before the next boundary is added
+     * by {@link #body(byte[]...)}
+     */
+    private static byte[] part(String name, String filename, byte[] content) {
+        var out = new ByteArrayOutputStream();
+        String disposition = "Content-Disposition: form-data; name=\"" + name + "\"" + (filename == null ? "" : "; filename=\"" + filename + "\"");
+        String headers = "--" + BOUNDARY + "\r\n" + disposition + "\r\n"
+                + (filename == null ? "" : "Content-Type: application/octet-stream\r\n") + "\r\n";
+        out.writeBytes(headers.getBytes(StandardCharsets.ISO_8859_1));
+        out.writeBytes(content);
+        out.writeBytes("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        return out.toByteArray();
+    }
+
+    private static byte[] body(byte[]... parts) {
+        var out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.writeBytes(part);
+        out.writeBytes(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        var out = new ByteArrayOutputStream();
+        out.writeBytes(a);
+        out.writeBytes(b);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a stream returning at most the given bytes on each read, like a body arriving in packets
+     */
+    private static InputStream pieces(byte[] body, int piece) {
+        return new ByteArrayInputStream(body) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, piece));
+            }
+        };
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,64 @@
+package net.vjdv.filecalli.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Expiration and eviction of sessions with lifetimes shorter and longer than a turn of the wheel
+ */
+class SessionStoreTests {
+
+    @Test
+    void closestToExpireIsEvictedFirst() {
+        //a turn of the wheel lasts 4 seconds
+        var store = new SessionStore<String>(3, 1000, 4);
+        store.put("a", "a", 100_000);
+        store.put("b", "b", 50_000);
+        store.put("c", "c", 200_000);
+        store.put("d", "d", 2_000);
+        assertNull(store.get("d"));
+        store.put("e", "e", 300_000);
+        assertNull(store.get("b"));
+        assertNotNull(store.get("a"));
+        assertNotNull(store.get("c"));
+        assertNotNull(store.get("e"));
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    void longSessionExpiresOnTick() {
+        //a turn of the wheel lasts 40 ms, the session lives for several turns
+        var clock = new AtomicLong(1_000_000);
+        var store = new SessionStore<String>(10, 10, 4, clock::get);
+        store.put("long", "long", 150);
+        store.put("short", "short", 20);
+        for (int i = 0; i < 14; i++) {
+            clock.addAndGet(10);
+            store.tick();
+        }
+        assertEquals(1, store.size());
+        clock.addAndGet(10);
+        store.tick();
+        assertEquals(0, store.size());
+        assertEquals(2, store.stats().expirations());
+    }
+
+    @Test
+    void tickAfterLongPauseExpiresEverything() {
+        var clock = new AtomicLong(1_000_000);
+        var store = new SessionStore<String>(10, 10, 4, clock::get);
+        store.put("a", "a", 30);
+        store.put("b", "b", 90);
+        store.put("c", "c", 10_000);
+        clock.addAndGet(150);
+        store.tick();
+        assertEquals(1, store.size());
+        assertNotNull(store.get("c"));
+    }
+
+}